@@ -0,0 +1,56 @@
+package com.mssde.apps;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One assignment pass of each strategy over a batch of pending requests.
+ * The fleet is loaded from an in-memory database, like the Director does
+ * on startup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AssignmentBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int fleetSize;
+
+    @Param({ "16", "256" })
+    public int pending;
+
+    @Param({ "auction", "greedy" })
+    public String strategyName;
+
+    private Database database;
+    private FleetStore fleet;
+    private AssignmentStrategy strategy;
+    private List<AssignmentStrategy.PendingRequest> requests;
+
+    @Setup
+    public void setup() throws SQLException {
+        SyntheticFleet synthetic = new SyntheticFleet();
+        database = SyntheticFleet.memoryDatabase("assignment");
+        synthetic.register(database, fleetSize);
+        fleet = new FleetStore(database);
+        fleet.loadFromDatabase();
+        requests = synthetic.requests(pending);
+        strategy = AssignmentStrategy.byName(strategyName);
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+    }
+
+    @Benchmark
+    public List<AssignmentStrategy.Assignment> assign() {
+        return strategy.assign(requests, fleet);
+    }
+}
@@ -0,0 +1,92 @@
+package com.mssde.apps;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary telemetry frames against the org.json messages drones and the
+ * Director exchanged before, for status reports and commands.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private final TelemetryCodec.Status status = new TelemetryCodec.Status();
+    private final TelemetryCodec.Command command = new TelemetryCodec.Command();
+    private final byte[] statusFrame = new byte[TelemetryCodec.STATUS_SIZE];
+    private final byte[] commandFrame = new byte[TelemetryCodec.COMMAND_SIZE];
+    private byte[] statusJson;
+    private byte[] commandJson;
+
+    @Setup
+    public void setup() {
+        SyntheticFleet fleet = new SyntheticFleet();
+        String requestId = UUID.nameUUIDFromBytes("request".getBytes()).toString();
+        status.status = DroneStatus.ON_ROUTE;
+        status.battery = 87;
+        status.lat = fleet.lat();
+        status.lon = fleet.lon();
+        status.setRequestId(requestId);
+        command.weight = 750;
+        command.lat = fleet.lat();
+        command.lon = fleet.lon();
+        command.setRequestId(requestId);
+
+        TelemetryCodec.encodeStatus(status, statusFrame);
+        TelemetryCodec.encodeCommand(command, commandFrame);
+        statusJson = TelemetryCodec.statusToJson(SyntheticFleet.droneId(0), status);
+        commandJson = TelemetryCodec.commandToJson(command);
+    }
+
+    @Benchmark
+    public byte[] encodeStatusBinary() {
+        TelemetryCodec.encodeStatus(status, statusFrame);
+        return statusFrame;
+    }
+
+    @Benchmark
+    public TelemetryCodec.Status decodeStatusBinary() {
+        TelemetryCodec.decodeStatus(statusFrame, status);
+        return status;
+    }
+
+    @Benchmark
+    public byte[] encodeStatusJson() {
+        return TelemetryCodec.statusToJson(SyntheticFleet.droneId(0), status);
+    }
+
+    @Benchmark
+    public TelemetryCodec.Status decodeStatusJson() {
+        TelemetryCodec.statusFromJson(statusJson, status);
+        return status;
+    }
+
+    @Benchmark
+    public byte[] encodeCommandBinary() {
+        TelemetryCodec.encodeCommand(command, commandFrame);
+        return commandFrame;
+    }
+
+    @Benchmark
+    public TelemetryCodec.Command decodeCommandBinary() {
+        TelemetryCodec.decodeCommand(commandFrame, command);
+        return command;
+    }
+
+    @Benchmark
+    public byte[] encodeCommandJson() {
+        return TelemetryCodec.commandToJson(command);
+    }
+
+    @Benchmark
+    public TelemetryCodec.Command decodeCommandJson() {
+        TelemetryCodec.commandFromJson(commandJson, command);
+        return command;
+    }
+}
@@ -0,0 +1,36 @@
+package com.mssde.apps;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Haversine distance, what Api.calcDistance and Director.calcDistance both
+ * go through.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark {
+
+    // Power of two so the index wraps with a mask
+    private static final int POINTS = 1024;
+
+    private double[] points;
+    private int next;
+
+    @Setup
+    public void setup() {
+        points = new SyntheticFleet().points(POINTS);
+    }
+
+    @Benchmark
+    public double haversine() {
+        int a = next++ & (POINTS - 1);
+        int b = (a * 31 + 7) & (POINTS - 1);
+        return SpatialIndex.haversine(points[2 * a], points[2 * a + 1], points[2 * b], points[2 * b + 1]);
+    }
+}
@@ -0,0 +1,87 @@
+package com.mssde.apps;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Director.processIncomingMessage end to end: decode, journal append,
+ * liveness and fleet update, on an in-memory database. The fleet is flushed
+ * and the journal checkpointed between iterations, as the Director does in
+ * the background.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IncomingMessageBenchmark {
+
+    // Power of two so the index wraps with a mask
+    private static final int MESSAGES = 4096;
+
+    @Param({ "10000" })
+    public int fleetSize;
+
+    @Param({ "binary", "json" })
+    public String format;
+
+    private Path journalDir;
+    private Director director;
+    private Database database;
+    private String[] topics;
+    private byte[][] payloads;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        SyntheticFleet synthetic = new SyntheticFleet();
+        journalDir = Files.createTempDirectory("journal-bench");
+        // The broker is never contacted, the client is only created
+        director = new Director("tcp://localhost:1883", "director_bench", 1000, new AuctionAssignment(),
+                "jdbc:sqlite:file:incoming?mode=memory&cache=shared", journalDir);
+        database = SyntheticFleet.memoryDatabase("incoming");
+        synthetic.register(database, fleetSize);
+        director.getFleet().loadFromDatabase();
+
+        // Idle drones moving around, each message lands on a random drone
+        topics = new String[MESSAGES];
+        payloads = new byte[MESSAGES][];
+        TelemetryCodec.Status status = new TelemetryCodec.Status();
+        status.status = DroneStatus.IDLE;
+        for (int i = 0; i < MESSAGES; i++) {
+            String droneId = SyntheticFleet.droneId((int) ((long) i * 7919 % fleetSize));
+            status.battery = 20 + i % 80;
+            status.lat = synthetic.lat();
+            status.lon = synthetic.lon();
+            topics[i] = "status/" + droneId;
+            if ("binary".equals(format)) {
+                payloads[i] = new byte[TelemetryCodec.STATUS_SIZE];
+                TelemetryCodec.encodeStatus(status, payloads[i]);
+            } else {
+                payloads[i] = TelemetryCodec.statusToJson(droneId, status);
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkpoint() {
+        director.checkpoint();
+    }
+
+    @TearDown
+    public void tearDown() {
+        director.close();
+        database.close();
+        SyntheticFleet.deleteRecursively(journalDir);
+    }
+
+    @Benchmark
+    public void processIncomingMessage() {
+        int i = next++ & (MESSAGES - 1);
+        director.processIncomingMessage(topics[i], payloads[i]);
+    }
+}
@@ -0,0 +1,81 @@
+package com.mssde.apps;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One planning pass: a batch of pending requests chained into the missions
+ * of a busy fleet, then a snapshot of the routes searched for a fixed number
+ * of moves and applied back. Most of the fleet is on a mission so chaining
+ * has to compete with few idle drones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MissionPlannerBenchmark {
+
+    private static final int BUSY = 1000;
+    private static final int IDLE = 100;
+
+    @Param({ "64", "256" })
+    public int pending;
+
+    // Moves made by the route search, 0 skips it
+    @Param({ "0", "64" })
+    public int moves;
+
+    private Database database;
+    private FleetStore fleet;
+    private List<AssignmentStrategy.PendingRequest> committed;
+    private List<AssignmentStrategy.PendingRequest> requests;
+    private MissionPlanner planner;
+
+    @Setup
+    public void setup() throws SQLException {
+        SyntheticFleet synthetic = new SyntheticFleet();
+        database = SyntheticFleet.memoryDatabase("planner");
+        synthetic.register(database, BUSY + IDLE);
+        fleet = new FleetStore(database);
+        fleet.loadFromDatabase();
+        committed = synthetic.requests(BUSY);
+        for (int i = 0; i < BUSY; i++) {
+            fleet.assign(SyntheticFleet.droneId(i), committed.get(i).requestId);
+        }
+        requests = synthetic.requests(pending);
+    }
+
+    /**
+     * Every pass starts from busy drones with nothing planned yet.
+     */
+    @Setup(Level.Invocation)
+    public void startMissions() {
+        planner = new MissionPlanner(fleet);
+        for (int i = 0; i < BUSY; i++) {
+            planner.start(SyntheticFleet.droneId(i), committed.get(i), MissionPlanner.Leg.PICKUP);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+    }
+
+    @Benchmark
+    public int plan() {
+        List<AssignmentStrategy.PendingRequest> unplanned = planner.plan(requests);
+        if (moves > 0) {
+            // Every pass starts from new missions, so the routes always changed
+            MissionPlanner.Snapshot snapshot = planner.snapshot();
+            // Bounded by the moves, not by time
+            snapshot.optimize(moves, TimeUnit.MINUTES.toMillis(1));
+            planner.apply(snapshot);
+        }
+        return unplanned.size();
+    }
+}
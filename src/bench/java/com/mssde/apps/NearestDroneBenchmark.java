@@ -0,0 +1,72 @@
+package com.mssde.apps;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nearest idle drone lookups on the grid index against the linear scan that
+ * getClosestDrone used to do, at growing fleet sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class NearestDroneBenchmark {
+
+    private static final int QUERIES = 1024;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int fleetSize;
+
+    private SpatialIndex index;
+    private double[] drones;
+    private double[] queries;
+    private int next;
+
+    @Setup
+    public void setup() {
+        SyntheticFleet fleet = new SyntheticFleet();
+        drones = fleet.points(fleetSize);
+        queries = fleet.points(QUERIES);
+        index = new SpatialIndex();
+        for (int i = 0; i < fleetSize; i++) {
+            index.put(new FleetStore.DroneState(SyntheticFleet.droneId(i)), drones[2 * i], drones[2 * i + 1]);
+        }
+    }
+
+    @Benchmark
+    public List<FleetStore.DroneState> nearest() {
+        int q = next++ & (QUERIES - 1);
+        return index.nearest(queries[2 * q], queries[2 * q + 1], 1);
+    }
+
+    /**
+     * Shortlist size used by the auction assignment.
+     */
+    @Benchmark
+    public List<FleetStore.DroneState> nearest8() {
+        int q = next++ & (QUERIES - 1);
+        return index.nearest(queries[2 * q], queries[2 * q + 1], 8);
+    }
+
+    @Benchmark
+    public int linearScan() {
+        int q = next++ & (QUERIES - 1);
+        double lat = queries[2 * q];
+        double lon = queries[2 * q + 1];
+        int closest = -1;
+        double minDistance = Double.MAX_VALUE;
+        for (int i = 0; i < fleetSize; i++) {
+            double distance = SpatialIndex.haversine(lat, lon, drones[2 * i], drones[2 * i + 1]);
+            if (distance < minDistance) {
+                minDistance = distance;
+                closest = i;
+            }
+        }
+        return closest;
+    }
+}
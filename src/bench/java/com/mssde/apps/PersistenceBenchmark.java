@@ -0,0 +1,106 @@
+package com.mssde.apps;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SQLite data path on a WAL database file, as in production: batched
+ * fleet flushes, and request inserts from the Api racing status reads for
+ * the single writer connection and the pooled readers. Only the database
+ * is measured, the HTTP path under concurrent clients is what LoadTest is for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    private static final int FLEET = 10000;
+    // Drones reporting between two flushes, one second of a 10k fleet on 10 s intervals
+    private static final int DIRTY = 1000;
+
+    private Path dir;
+    private Database database;
+    private FleetStore fleet;
+    private SyntheticFleet synthetic;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("persistence-bench");
+        database = new Database("jdbc:sqlite:" + dir.resolve("drones.db"), 8);
+        database.migrate();
+        synthetic = new SyntheticFleet();
+        synthetic.register(database, FLEET);
+        fleet = new FleetStore(database);
+        fleet.loadFromDatabase();
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+        SyntheticFleet.deleteRecursively(dir);
+    }
+
+    /**
+     * Flush of a batch of drones that reported since the previous flush.
+     */
+    @Benchmark
+    @Threads(1)
+    public void flush() {
+        for (int i = 0; i < DIRTY; i++) {
+            int drone = next++ % FLEET;
+            fleet.update(SyntheticFleet.droneId(drone), synthetic.lat(), synthetic.lon(), 90, DroneStatus.IDLE, true);
+        }
+        fleet.flush();
+    }
+
+    /**
+     * One writer inserting requests the way POST /request does, while three
+     * threads read request rows the way GET /status does.
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public boolean insertRequest() throws SQLException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String requestId = new UUID(random.nextLong(), random.nextLong()).toString();
+        return database.write(session -> {
+            PreparedStatement insertStmt = session.prepare(
+                    "INSERT INTO requests (request_id, origin_lat, origin_lon, dest_lat, dest_lon, weight, curr_status) VALUES (?, ?, ?, ?, ?, ?, ?)");
+            insertStmt.setString(1, requestId);
+            insertStmt.setDouble(2, 40.3 + random.nextDouble() * 0.3);
+            insertStmt.setDouble(3, -3.85 + random.nextDouble() * 0.3);
+            insertStmt.setDouble(4, 40.3 + random.nextDouble() * 0.3);
+            insertStmt.setDouble(5, -3.85 + random.nextDouble() * 0.3);
+            insertStmt.setInt(6, 100 + random.nextInt(1900));
+            insertStmt.setInt(7, RequestStatus.PENDING.code);
+            return insertStmt.executeUpdate() == 1;
+        });
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public int readDrone() throws SQLException {
+        String droneId = SyntheticFleet.droneId(ThreadLocalRandom.current().nextInt(FLEET));
+        return database.read(session -> {
+            PreparedStatement selectStmt = session.prepare(
+                    "SELECT curr_battery, curr_status FROM drones WHERE drone_id = ?");
+            selectStmt.setString(1, droneId);
+            try (ResultSet rs = selectStmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : -1;
+            }
+        });
+    }
+}
@@ -0,0 +1,118 @@
+package com.mssde.apps;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Reproducible fleets and requests for the benchmarks. Everything is drawn
+ * from a Random with a fixed seed over a 30 km square around Madrid, so two
+ * runs of a suite see exactly the same positions.
+ */
+public class SyntheticFleet {
+
+    public static final long SEED = 42;
+    private static final double MIN_LAT = 40.30;
+    private static final double MIN_LON = -3.85;
+    private static final double SPAN = 0.30;
+
+    private final Random random;
+
+    public SyntheticFleet(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public SyntheticFleet() {
+        this(SEED);
+    }
+
+    public static String droneId(int i) {
+        return "drone_" + i;
+    }
+
+    public double lat() {
+        return MIN_LAT + random.nextDouble() * SPAN;
+    }
+
+    public double lon() {
+        return MIN_LON + random.nextDouble() * SPAN;
+    }
+
+    /**
+     * Latitudes in even slots and longitudes in odd ones.
+     */
+    public double[] points(int n) {
+        double[] points = new double[2 * n];
+        for (int i = 0; i < n; i++) {
+            points[2 * i] = lat();
+            points[2 * i + 1] = lon();
+        }
+        return points;
+    }
+
+    public List<AssignmentStrategy.PendingRequest> requests(int n) {
+        List<AssignmentStrategy.PendingRequest> requests = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            requests.add(new AssignmentStrategy.PendingRequest(new UUID(random.nextLong(), random.nextLong()).toString(),
+                    lat(), lon(), lat(), lon(), 100 + random.nextInt(1900)));
+        }
+        return requests;
+    }
+
+    /**
+     * SQLite database living only in memory, kept alive by the writer
+     * connection. Shared cache so the pooled readers see the same data.
+     */
+    public static Database memoryDatabase(String name) throws SQLException {
+        Database database = new Database("jdbc:sqlite:file:" + name + "?mode=memory&cache=shared", 4);
+        database.migrate();
+        return database;
+    }
+
+    /**
+     * Register drones 0 to n - 1 as idle, with a full battery, at random positions.
+     */
+    public void register(Database database, int n) throws SQLException {
+        database.write(session -> {
+            PreparedStatement insertStmt = session.prepare(
+                    "INSERT INTO drones (drone_id, curr_lat, curr_lon, curr_battery, curr_status) VALUES (?, ?, ?, ?, ?)");
+            for (int i = 0; i < n; i++) {
+                insertStmt.setString(1, droneId(i));
+                insertStmt.setDouble(2, lat());
+                insertStmt.setDouble(3, lon());
+                insertStmt.setInt(4, 100);
+                insertStmt.setInt(5, DroneStatus.IDLE.code);
+                insertStmt.addBatch();
+                if (i % 10000 == 9999) {
+                    insertStmt.executeBatch();
+                }
+            }
+            return insertStmt.executeBatch();
+        });
+    }
+
+    public static void deleteRecursively(Path dir) {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
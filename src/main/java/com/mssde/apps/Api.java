@@ -1,17 +1,33 @@
 package com.mssde.apps;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.web.bind.annotation.*;
-
-import static java.lang.Math.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -20,7 +36,7 @@ public class Api {
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Please provide listen address and port to listen as arguments.");
+            System.out.println("Please provide listen address and port to listen as arguments, and optionally the broker URL.");
             return;
         }
 
@@ -28,15 +44,28 @@ public class Api {
         String port = args[1];
         System.setProperty("server.address", listenTo);
         System.setProperty("server.port", port);
+        // Room for long-poll and tracking connections on top of regular traffic
+        System.setProperty("server.tomcat.max-connections", "20000");
+        System.setProperty("server.tomcat.threads.max", "400");
+        if (args.length > 2) {
+            System.setProperty("broker.url", args[2]);
+        }
+        // Prometheus scrapes /actuator/prometheus
+        System.setProperty("management.endpoints.web.exposure.include", "health,prometheus");
         SpringApplication.run(Api.class, args);
     }
 
+    @Bean(destroyMethod = "close")
+    public Database database(MeterRegistry registry) throws SQLException {
+        Database database = new Database(Database.DEFAULT_URL, 16);
+        database.bindMetrics(registry);
+        database.migrate();
+        return database;
+    }
+
     @Bean
-    public DataSource dataSource() {
-        DriverManagerDataSource dataSource = new DriverManagerDataSource();
-        dataSource.setDriverClassName("org.sqlite.JDBC");
-        dataSource.setUrl("jdbc:sqlite:dronesystem.db");
-        return dataSource;
+    public DataSource dataSource(Database database) {
+        return database.getDataSource();
     }
 
     @Bean
@@ -44,46 +73,185 @@ public class Api {
         return new JdbcTemplate(dataSource);
     }
 
+    @Bean
+    public EventPublisher eventPublisher() {
+        return new EventPublisher(System.getProperty("broker.url"), "api-" + UUID.randomUUID());
+    }
+
+    @Bean
+    public RequestIntake requestIntake(Database database, ObjectMapper mapper, MeterRegistry registry) {
+        RequestIntake requestIntake = new RequestIntake(database, mapper);
+        requestIntake.bindMetrics(registry);
+        return requestIntake;
+    }
+
+    @Bean
+    public StatusCache statusCache(EventPublisher eventPublisher) {
+        StatusCache statusCache = new StatusCache(10000, 5000);
+        eventPublisher.subscribe(EventPublisher.STATUS_TOPIC, statusCache::invalidate);
+        return statusCache;
+    }
+
+    @Bean
+    public TrackingHub trackingHub(EventPublisher eventPublisher, MeterRegistry registry) {
+        TrackingHub trackingHub = new TrackingHub(8, 30 * 60 * 1000L);
+        Counter received = Counter.builder("api.telemetry.received")
+                .description("Drone status messages fanned out to trackers").register(registry);
+        Gauge.builder("api.tracking.subscribers", trackingHub, TrackingHub::subscriberCount).register(registry);
+        FunctionCounter.builder("api.tracking.dropped", trackingHub, TrackingHub::droppedCount)
+                .description("Positions dropped for slow tracking clients").register(registry);
+        // Paho delivers on a single thread, so one decode holder is enough
+        TelemetryCodec.Status status = new TelemetryCodec.Status();
+        eventPublisher.subscribe("status/+", (IMqttMessageListener) (topic, message) -> {
+            received.increment();
+            trackingHub.onTelemetry(topic, message.getPayload(), status);
+        });
+        return trackingHub;
+    }
+
     @RestController
     public class ApiController {
 
+        private static final long MAX_WAIT_SECONDS = 60;
+
         private final JdbcTemplate jdbcTemplate;
+        private final Database database;
+        private final EventPublisher eventPublisher;
+        private final StatusCache statusCache;
+        private final TrackingHub trackingHub;
+        private final RequestIntake requestIntake;
 
-        public ApiController(JdbcTemplate jdbcTemplate) {
+        public ApiController(JdbcTemplate jdbcTemplate, Database database, EventPublisher eventPublisher,
+                StatusCache statusCache, TrackingHub trackingHub, RequestIntake requestIntake) {
             this.jdbcTemplate = jdbcTemplate;
+            this.database = database;
+            this.eventPublisher = eventPublisher;
+            this.statusCache = statusCache;
+            this.trackingHub = trackingHub;
+            this.requestIntake = requestIntake;
         }
 
         @PostMapping("/request")
-        public ResponseEntity<Map<String, Object>> request(@RequestBody Map<String, Object> payload) {
-            // Check existing request
-            Integer count = jdbcTemplate.queryForObject(
-                    "SELECT COUNT(*) FROM requests WHERE origin_latlong = ? AND dest_latlong = ? AND curr_status NOT IN ('done', 'cancelled')",
-                    new Object[] { payload.get("origin_latlong"), payload.get("dest_latlong") },
-                    Integer.class);
-
-            if (count != null && count > 0) {
-                return new ResponseEntity<>(Map.of("error", "Another request with similar data already exists."),
-                        HttpStatus.BAD_REQUEST);
+        public ResponseEntity<Map<String, Object>> request(@RequestBody JsonNode payload) throws SQLException {
+            // Same checks as the batch intake, a bad field is a 400 and not a 500
+            RequestIntake.Item item = RequestIntake.parseRequest(payload);
+            if (item.getError() != null) {
+                return new ResponseEntity<>(Map.of("error", item.getError()), HttpStatus.BAD_REQUEST);
             }
+            double originLat = item.originLat;
+            double originLon = item.originLon;
+            double destLat = item.destLat;
+            double destLon = item.destLon;
+            int weight = item.weight;
 
             UUID requestID = UUID.randomUUID();
-            jdbcTemplate.update(
-                    "INSERT INTO requests (request_id, origin_latlong, dest_latlong, weight, curr_status) VALUES (?, ?, ?, ?, ?)",
-                    requestID, payload.get("origin_latlong"), payload.get("dest_latlong"), payload.get("weight"),
-                    "pending");
+            // Check and insert in the same write transaction so two identical
+            // requests arriving together cannot both get through
+            boolean created = database.write(session -> {
+                PreparedStatement countStmt = session.prepare(
+                        "SELECT COUNT(*) FROM requests WHERE origin_lat = ? AND origin_lon = ? AND dest_lat = ? AND dest_lon = ? AND curr_status NOT IN (?, ?)");
+                countStmt.setDouble(1, originLat);
+                countStmt.setDouble(2, originLon);
+                countStmt.setDouble(3, destLat);
+                countStmt.setDouble(4, destLon);
+                countStmt.setInt(5, RequestStatus.DONE.code);
+                countStmt.setInt(6, RequestStatus.CANCELLED.code);
+                try (ResultSet rs = countStmt.executeQuery()) {
+                    if (rs.next() && rs.getInt(1) > 0) {
+                        return false;
+                    }
+                }
+
+                PreparedStatement insertStmt = session.prepare(
+                        "INSERT INTO requests (request_id, origin_lat, origin_lon, dest_lat, dest_lon, weight, curr_status) VALUES (?, ?, ?, ?, ?, ?, ?)");
+                insertStmt.setString(1, requestID.toString());
+                insertStmt.setDouble(2, originLat);
+                insertStmt.setDouble(3, originLon);
+                insertStmt.setDouble(4, destLat);
+                insertStmt.setDouble(5, destLon);
+                insertStmt.setInt(6, weight);
+                insertStmt.setInt(7, RequestStatus.PENDING.code);
+                insertStmt.executeUpdate();
+                return true;
+            });
+
+            if (!created) {
+                return new ResponseEntity<>(Map.of("error", "Another request with similar data already exists."),
+                        HttpStatus.BAD_REQUEST);
+            }
+            eventPublisher.publish(EventPublisher.NEW_REQUEST_TOPIC, requestID.toString());
 
             return new ResponseEntity<>(Map.of("request_id", requestID, "status", "pending"), HttpStatus.CREATED);
         }
 
+        /**
+         * Create many requests at once from a JSON array or NDJSON body. Every
+         * item needs an idempotency_key, resending a key returns the request
+         * already created for it. Answers with one result per item, in order.
+         */
+        @PostMapping(value = "/requests/batch", consumes = { MediaType.APPLICATION_JSON_VALUE,
+                MediaType.APPLICATION_NDJSON_VALUE })
+        public ResponseEntity<Map<String, Object>> requestBatch(InputStream body) throws IOException, SQLException {
+            List<RequestIntake.Item> items;
+            try {
+                items = requestIntake.submit(body);
+            } catch (RequestIntake.TooManyItemsException e) {
+                return new ResponseEntity<>(Map.of("error", e.getMessage()), HttpStatus.PAYLOAD_TOO_LARGE);
+            } catch (JsonProcessingException e) {
+                String at = e.getLocation() == null ? ""
+                        : " at line " + e.getLocation().getLineNr() + ", column " + e.getLocation().getColumnNr();
+                return new ResponseEntity<>(Map.of("error", "Malformed JSON" + at + ": " + e.getOriginalMessage()),
+                        HttpStatus.BAD_REQUEST);
+            }
+
+            int created = 0;
+            int existing = 0;
+            int failed = 0;
+            String lastCreated = null;
+            List<Map<String, Object>> results = new ArrayList<>(items.size());
+            for (RequestIntake.Item item : items) {
+                if (item.getError() != null) {
+                    failed++;
+                } else if (item.isCreated()) {
+                    created++;
+                    lastCreated = item.getRequestId();
+                } else {
+                    existing++;
+                }
+                results.add(item.toJson());
+            }
+            // One event is enough, the Director picks up every pending request on its pass
+            if (lastCreated != null) {
+                eventPublisher.publish(EventPublisher.NEW_REQUEST_TOPIC, lastCreated);
+            }
+
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("created", created);
+            response.put("existing", existing);
+            response.put("failed", failed);
+            response.put("results", results);
+            return new ResponseEntity<>(response, HttpStatus.OK);
+        }
+
         @PostMapping("/cancel")
-        public ResponseEntity<Map<String, Object>> cancel(@RequestBody Map<String, Object> payload) {
+        public ResponseEntity<Map<String, Object>> cancel(@RequestBody Map<String, Object> payload)
+                throws SQLException {
             String requestID = (String) payload.get("request_id");
 
-            int updated = jdbcTemplate.update(
-                    "UPDATE requests SET curr_status = 'cancelling' WHERE request_id = ? AND (curr_status = 'pending' OR curr_status = 'on route' OR curr_status = 'assigned')",
-                    requestID);
+            int updated = database.write(session -> {
+                PreparedStatement updateStmt = session.prepare(
+                        "UPDATE requests SET curr_status = ? WHERE request_id = ? AND curr_status IN (?, ?, ?)");
+                updateStmt.setInt(1, RequestStatus.CANCELLING.code);
+                updateStmt.setString(2, requestID);
+                updateStmt.setInt(3, RequestStatus.PENDING.code);
+                updateStmt.setInt(4, RequestStatus.ON_ROUTE.code);
+                updateStmt.setInt(5, RequestStatus.ASSIGNED.code);
+                return updateStmt.executeUpdate();
+            });
 
             if (updated > 0) {
+                statusCache.invalidate(requestID);
+                eventPublisher.publish(EventPublisher.CANCEL_TOPIC, requestID);
                 return new ResponseEntity<>(Map.of("request_id", requestID, "status", "cancelled"), HttpStatus.CREATED);
             } else {
                 return new ResponseEntity<>(Map.of("error", "Request not found or cannot be cancelled."),
@@ -91,25 +259,117 @@ public class Api {
             }
         }
 
+        /**
+         * Status of a request. Supports If-None-Match, answering 304 when the
+         * status did not change, and long polling: with ?wait=N and a matching
+         * ETag the call is held up to N seconds until the request changes.
+         */
         @GetMapping("/status/{request_id}")
-        public ResponseEntity<Map<String, Object>> status(@PathVariable String request_id) {
-            Map<String, Object> result = jdbcTemplate.queryForMap("SELECT * FROM requests WHERE request_id = ?",
-                    request_id);
+        public DeferredResult<ResponseEntity<Map<String, Object>>> status(@PathVariable String request_id,
+                @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+                @RequestParam(value = "wait", defaultValue = "0") long wait) {
+            long timeoutMs = Math.min(wait, MAX_WAIT_SECONDS) * 1000;
+            DeferredResult<ResponseEntity<Map<String, Object>>> result = new DeferredResult<>(
+                    timeoutMs > 0 ? timeoutMs : null);
 
-            if (result == null || result.isEmpty()) {
-                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            StatusCache.Entry entry = lookupStatus(request_id);
+            if (entry == null) {
+                result.setResult(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+                return result;
+            }
+            if (ifNoneMatch == null || !ifNoneMatch.equals(entry.etag)) {
+                result.setResult(statusResponse(entry));
+                return result;
             }
+            if (timeoutMs <= 0) {
+                result.setResult(notModified(entry));
+                return result;
+            }
+
+            // Unchanged: park the call until the request changes or the wait runs out
+            Runnable waiter = () -> {
+                StatusCache.Entry changed = lookupStatus(request_id);
+                if (changed == null) {
+                    result.setResult(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+                } else if (changed.etag.equals(ifNoneMatch)) {
+                    result.setResult(notModified(changed));
+                } else {
+                    result.setResult(statusResponse(changed));
+                }
+            };
+            statusCache.addWaiter(request_id, waiter);
+            result.onTimeout(() -> result.setResult(notModified(entry)));
+            result.onCompletion(() -> statusCache.removeWaiter(request_id, waiter));
+
+            // Catch a change that happened before the waiter was registered
+            StatusCache.Entry current = lookupStatus(request_id);
+            if (current == null || !current.etag.equals(ifNoneMatch)) {
+                waiter.run();
+            }
+            return result;
+        }
 
-            if (result.get("curr_latlong") != null) {
-                String[] origin = ((String) result.get("origin_latlong")).split(",");
-                String[] curr = ((String) result.get("curr_latlong")).split(",");
-                double distance = calcDistance(Double.parseDouble(origin[0]), Double.parseDouble(origin[1]),
-                        Double.parseDouble(curr[0]), Double.parseDouble(curr[1]));
+        /**
+         * Live position updates of a drone as Server-Sent Events.
+         */
+        @GetMapping(path = "/track/drone/{drone_id}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+        public SseEmitter trackDrone(@PathVariable String drone_id) {
+            return trackingHub.watchDrone(drone_id);
+        }
+
+        /**
+         * Live position updates of the drone serving a request as Server-Sent Events.
+         */
+        @GetMapping(path = "/track/request/{request_id}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+        public SseEmitter trackRequest(@PathVariable String request_id) {
+            return trackingHub.watchRequest(request_id);
+        }
 
-                result.put("distance_to_destination", distance);
+        private ResponseEntity<Map<String, Object>> statusResponse(StatusCache.Entry entry) {
+            return ResponseEntity.ok().eTag(entry.etag).body(entry.body);
+        }
+
+        private ResponseEntity<Map<String, Object>> notModified(StatusCache.Entry entry) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(entry.etag).build();
+        }
+
+        /**
+         * Cached status of a request, loaded from the database on a miss.
+         * Returns null if the request does not exist.
+         */
+        private StatusCache.Entry lookupStatus(String requestId) {
+            StatusCache.Entry entry = statusCache.get(requestId);
+            if (entry != null) {
+                return entry;
             }
+            long stamp = statusCache.stamp();
+            List<Map<String, Object>> rows = jdbcTemplate.query(
+                    "SELECT request_id, origin_lat, origin_lon, dest_lat, dest_lon, weight, drone_id, curr_status, curr_lat, curr_lon FROM requests WHERE request_id = ?",
+                    (rs, rowNum) -> {
+                        Map<String, Object> row = new LinkedHashMap<>();
+                        row.put("request_id", rs.getString("request_id"));
+                        row.put("origin_latlong", LatLong.format(rs.getDouble("origin_lat"), rs.getDouble("origin_lon")));
+                        row.put("dest_latlong", LatLong.format(rs.getDouble("dest_lat"), rs.getDouble("dest_lon")));
+                        row.put("weight", rs.getInt("weight"));
+                        row.put("drone_id", rs.getString("drone_id"));
+                        row.put("curr_status", RequestStatus.fromCode(rs.getInt("curr_status")).label);
+                        double currLat = rs.getDouble("curr_lat");
+                        if (rs.wasNull()) {
+                            row.put("curr_latlong", null);
+                        } else {
+                            double currLon = rs.getDouble("curr_lon");
+                            row.put("curr_latlong", LatLong.format(currLat, currLon));
+                            row.put("distance_to_destination", calcDistance(rs.getDouble("origin_lat"),
+                                    rs.getDouble("origin_lon"), currLat, currLon));
+                        }
+                        return row;
+                    },
+                    requestId);
 
-            return new ResponseEntity<>(result, HttpStatus.OK);
+            if (rows.isEmpty()) {
+                return null;
+            }
+            return statusCache.put(requestId, rows.get(0), stamp);
         }
 
         /**
@@ -117,15 +377,7 @@ public class Api {
          * Haversine formula
          */
         public double calcDistance(double lat1, double lon1, double lat2, double lon2) {
-            final int R = 6371; // Radius of the earth in km
-            double dLat = toRadians(lat2 - lat1);
-            double dLon = toRadians(lon2 - lon1);
-            double a = sin(dLat / 2) * sin(dLat / 2) +
-                    cos(toRadians(lat1)) * cos(toRadians(lat2)) *
-                            sin(dLon / 2) * sin(dLon / 2);
-            double c = 2 * atan2(sqrt(a), sqrt(1 - a));
-            double distance = R * c; // Convert to meters
-            return distance * 1000;
+            return SpatialIndex.haversine(lat1, lon1, lat2, lon2);
         }
     }
 }
@@ -0,0 +1,67 @@
+package com.mssde.apps;
+
+import java.util.List;
+
+/**
+ * Decides which idle drone serves each pending request. Implementations only
+ * work on memory, the caller persists and publishes the result.
+ */
+public interface AssignmentStrategy {
+
+    /**
+     * Pending request with its coordinates already parsed.
+     */
+    class PendingRequest {
+        public final String requestId;
+        public final double originLat;
+        public final double originLon;
+        public final double destLat;
+        public final double destLon;
+        public final int weight;
+
+        public PendingRequest(String requestId, double originLat, double originLon, double destLat, double destLon,
+                int weight) {
+            this.requestId = requestId;
+            this.originLat = originLat;
+            this.originLon = originLon;
+            this.destLat = destLat;
+            this.destLon = destLon;
+            this.weight = weight;
+        }
+
+        /**
+         * Length of the delivery leg in meters.
+         */
+        public double deliveryDistance() {
+            return SpatialIndex.haversine(originLat, originLon, destLat, destLon);
+        }
+    }
+
+    class Assignment {
+        public final PendingRequest request;
+        public final String droneId;
+        public final double pickupDistance;
+
+        public Assignment(PendingRequest request, String droneId, double pickupDistance) {
+            this.request = request;
+            this.droneId = droneId;
+            this.pickupDistance = pickupDistance;
+        }
+    }
+
+    /**
+     * Match the pending requests against the idle fleet. Requests that cannot
+     * be served by any feasible drone are left out of the result.
+     */
+    List<Assignment> assign(List<PendingRequest> requests, FleetStore fleet);
+
+    static AssignmentStrategy byName(String name) {
+        if ("greedy".equalsIgnoreCase(name)) {
+            return new GreedyAssignment();
+        }
+        if ("batch".equalsIgnoreCase(name) || "auction".equalsIgnoreCase(name)) {
+            return new AuctionAssignment();
+        }
+        throw new IllegalArgumentException("Unknown assignment strategy: " + name);
+    }
+}
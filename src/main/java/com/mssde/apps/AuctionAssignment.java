@@ -0,0 +1,125 @@
+package com.mssde.apps;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Solves the whole backlog at once with a forward auction (Bertsekas) over a
+ * bounded set of nearby, feasible candidates per request. It minimizes the
+ * total pickup distance instead of serving requests first come, first served.
+ * Requests may stay unassigned when every candidate is better used elsewhere.
+ */
+public class AuctionAssignment implements AssignmentStrategy {
+
+    private static final int CANDIDATES = 8;
+
+    @Override
+    public List<Assignment> assign(List<PendingRequest> requests, FleetStore fleet) {
+        int n = requests.size();
+        List<Assignment> result = new ArrayList<>();
+        if (n == 0 || fleet.idleCount() == 0) {
+            return result;
+        }
+
+        // Sparse candidate lists: drone index and pickup distance per request
+        Map<String, Integer> droneIndex = new HashMap<>();
+        List<String> droneIds = new ArrayList<>();
+        int[][] candDrone = new int[n][];
+        double[][] candCost = new double[n][];
+        double maxCost = 0;
+        for (int i = 0; i < n; i++) {
+            PendingRequest request = requests.get(i);
+            double delivery = request.deliveryDistance();
+            List<FleetStore.DroneState> nearest = fleet.nearestIdle(request.originLat, request.originLon, CANDIDATES);
+            int[] drones = new int[nearest.size()];
+            double[] costs = new double[nearest.size()];
+            int count = 0;
+            for (FleetStore.DroneState drone : nearest) {
+                double pickup = SpatialIndex.haversine(drone.getLat(), drone.getLon(), request.originLat,
+                        request.originLon);
+                if (!BatteryModel.canServe(drone.getBattery(), pickup, delivery, request.weight)) {
+                    continue;
+                }
+                Integer j = droneIndex.get(drone.getDroneId());
+                if (j == null) {
+                    j = droneIds.size();
+                    droneIndex.put(drone.getDroneId(), j);
+                    droneIds.add(drone.getDroneId());
+                }
+                drones[count] = j;
+                costs[count] = pickup;
+                maxCost = Math.max(maxCost, pickup);
+                count++;
+            }
+            candDrone[i] = Arrays.copyOf(drones, count);
+            candCost[i] = Arrays.copyOf(costs, count);
+        }
+
+        // Benefit of a pair is offset so every real option beats staying
+        // unassigned (benefit 0). Prices are bounded by the offset, so the
+        // auction terminates even when requests outnumber drones.
+        double offset = maxCost + 1;
+        double epsilon = Math.max(1.0, offset / (n + 1));
+        int m = droneIds.size();
+        double[] price = new double[m];
+        int[] owner = new int[m];
+        Arrays.fill(owner, -1);
+        int[] assigned = new int[n];
+        Arrays.fill(assigned, -1);
+
+        Deque<Integer> unassigned = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            if (candDrone[i].length > 0) {
+                unassigned.add(i);
+            }
+        }
+
+        while (!unassigned.isEmpty()) {
+            int i = unassigned.poll();
+            int bestJ = -1;
+            double best = 0;
+            double second = 0;
+            for (int c = 0; c < candDrone[i].length; c++) {
+                int j = candDrone[i][c];
+                double value = offset - candCost[i][c] - price[j];
+                if (value > best) {
+                    second = best;
+                    best = value;
+                    bestJ = j;
+                } else if (value > second) {
+                    second = value;
+                }
+            }
+            if (bestJ < 0) {
+                // Every candidate costs more than it is worth, leave the request pending
+                continue;
+            }
+            price[bestJ] += best - second + epsilon;
+            if (owner[bestJ] >= 0) {
+                assigned[owner[bestJ]] = -1;
+                unassigned.add(owner[bestJ]);
+            }
+            owner[bestJ] = i;
+            assigned[i] = bestJ;
+        }
+
+        for (int i = 0; i < n; i++) {
+            int j = assigned[i];
+            if (j < 0) {
+                continue;
+            }
+            for (int c = 0; c < candDrone[i].length; c++) {
+                if (candDrone[i][c] == j) {
+                    result.add(new Assignment(requests.get(i), droneIds.get(j), candCost[i][c]));
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+}
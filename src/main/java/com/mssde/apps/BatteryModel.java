@@ -0,0 +1,31 @@
+package com.mssde.apps;
+
+/**
+ * Rough energy model used to decide whether a drone can complete a job.
+ * Battery is expressed as a percentage and drains linearly with distance,
+ * faster the heavier the load.
+ */
+public class BatteryModel {
+
+    // Percentage drained per km flown empty
+    public static final double DRAIN_PER_KM = 1.0;
+    // Extra percentage drained per km for each kg of load (weight is in grams)
+    public static final double DRAIN_PER_KM_KG = 0.5;
+    // Percentage that must be left when the drone lands at destination
+    public static final double RESERVE = 10.0;
+
+    private BatteryModel() {
+    }
+
+    /**
+     * Battery needed to fly to the pickup empty and then to the destination loaded.
+     */
+    public static double required(double pickupMeters, double deliveryMeters, int weight) {
+        return pickupMeters / 1000 * DRAIN_PER_KM
+                + deliveryMeters / 1000 * (DRAIN_PER_KM + weight / 1000.0 * DRAIN_PER_KM_KG);
+    }
+
+    public static boolean canServe(int battery, double pickupMeters, double deliveryMeters, int weight) {
+        return battery - required(pickupMeters, deliveryMeters, weight) >= RESERVE;
+    }
+}
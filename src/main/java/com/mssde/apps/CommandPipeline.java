@@ -0,0 +1,192 @@
+package com.mssde.apps;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.eclipse.paho.client.mqttv3.*;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous outbound pipeline for the Director's drone commands.
+ *
+ * Commands are published with QoS 1 and complete when the broker acknowledges
+ * them, so the caller never waits on a network round trip. At most
+ * maxInFlight commands are outstanding at a time; send() only blocks once that
+ * limit is reached. Failed deliveries are retried with exponential backoff and,
+ * once the attempts run out, handed to the failure handler so the request can
+ * go back to pending.
+ */
+public class CommandPipeline {
+
+    private static final long MAX_BACKOFF_MS = 10000;
+
+    /**
+     * Called on the pipeline's own thread when a command could not be
+     * delivered after every attempt.
+     */
+    public interface FailureHandler {
+        void deliveryFailed(String requestId, String droneId);
+    }
+
+    /**
+     * A command on its way to a drone.
+     */
+    private class Outgoing implements IMqttActionListener {
+        final String requestId;
+        final String droneId;
+        final byte[] payload;
+        int attempts;
+        long sentAt;
+
+        Outgoing(String requestId, String droneId, byte[] payload) {
+            this.requestId = requestId;
+            this.droneId = droneId;
+            this.payload = payload;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+            publishTimer.record(System.nanoTime() - sentAt, TimeUnit.NANOSECONDS);
+            permits.release();
+            inFlight.remove(requestId, this);
+            delivered.incrementAndGet();
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+            permits.release();
+            failed(exception);
+        }
+
+        void failed(Throwable exception) {
+            if (inFlight.get(requestId) != this) {
+                // Cancelled or superseded meanwhile
+                return;
+            }
+            if (attempts >= maxAttempts) {
+                inFlight.remove(requestId, this);
+                failures.incrementAndGet();
+                System.out.println("Warning: Giving up on command for request " + requestId + " to drone "
+                        + droneId + ": " + exception.getMessage());
+                scheduler.execute(() -> onFailure.deliveryFailed(requestId, droneId));
+                return;
+            }
+            retries.incrementAndGet();
+            long backoff = Math.min(MAX_BACKOFF_MS, baseBackoffMs << (attempts - 1));
+            // Full jitter so commands that failed together do not retry together
+            long delay = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+            scheduler.schedule(this::attempt, delay, TimeUnit.MILLISECONDS);
+        }
+
+        void attempt() {
+            if (inFlight.get(requestId) != this) {
+                return;
+            }
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            attempts++;
+            sentAt = System.nanoTime();
+            try {
+                client.publish("command/" + droneId, payload, 1, false, null, this);
+            } catch (MqttException e) {
+                // Not connected or the client's own in-flight window is full
+                permits.release();
+                failed(e);
+            }
+        }
+    }
+
+    private final MqttAsyncClient client;
+    private final int maxAttempts;
+    private final long baseBackoffMs;
+    private final FailureHandler onFailure;
+    private final Semaphore permits;
+    private final Map<String, Outgoing> inFlight = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    // No-op until bindMetrics() is called
+    private Timer publishTimer = Timer.builder("director.command.publish").register(new CompositeMeterRegistry());
+
+    public CommandPipeline(MqttAsyncClient client, int maxInFlight, int maxAttempts, long baseBackoffMs,
+            FailureHandler onFailure) {
+        this.client = client;
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMs = baseBackoffMs;
+        this.onFailure = onFailure;
+        this.permits = new Semaphore(maxInFlight);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "command-retry");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queue a command for the drone. Returns as soon as the command is handed
+     * to the client, blocking only while maxInFlight commands are outstanding.
+     */
+    public void send(String requestId, String droneId, byte[] payload) {
+        Outgoing outgoing = new Outgoing(requestId, droneId, payload);
+        inFlight.put(requestId, outgoing);
+        outgoing.attempt();
+    }
+
+    /**
+     * Stop retrying the command of a request, e.g. because it was cancelled.
+     * Returns false if nothing was outstanding for it.
+     */
+    public boolean cancel(String requestId) {
+        return inFlight.remove(requestId) != null;
+    }
+
+    public boolean isInFlight(String requestId) {
+        return inFlight.containsKey(requestId);
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    public long deliveredCount() {
+        return delivered.get();
+    }
+
+    public long retryCount() {
+        return retries.get();
+    }
+
+    public long failureCount() {
+        return failures.get();
+    }
+
+    public void bindMetrics(MeterRegistry registry) {
+        publishTimer = Metrics.latency(registry, "director.command.publish",
+                "Command publish until the broker acknowledges it");
+        Gauge.builder("director.command.inflight", inFlight, Map::size)
+                .description("Commands waiting for delivery or a retry").register(registry);
+        FunctionCounter.builder("director.command.delivered", delivered, AtomicLong::get).register(registry);
+        FunctionCounter.builder("director.command.retries", retries, AtomicLong::get).register(registry);
+        FunctionCounter.builder("director.command.failures", failures, AtomicLong::get)
+                .description("Commands given up on after every attempt").register(registry);
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+}
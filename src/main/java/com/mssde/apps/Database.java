@@ -0,0 +1,319 @@
+package com.mssde.apps;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.sqlite.SQLiteConfig;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistence layer shared by Api and Director.
+ *
+ * SQLite allows a single writer at a time, so every write goes through one
+ * dedicated connection guarded by a lock, with its prepared statements cached
+ * by SQL text. Reads use a connection pool and, thanks to WAL mode, never
+ * wait on the writer.
+ */
+public class Database implements AutoCloseable {
+
+    public static final String DEFAULT_URL = "jdbc:sqlite:dronesystem.db";
+
+    /**
+     * Unit of work executed on a session.
+     */
+    public interface Work<T> {
+        T run(Session session) throws SQLException;
+    }
+
+    /**
+     * Connection plus a cache of its prepared statements.
+     */
+    public static class Session {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        Session(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Return the cached statement for this SQL, preparing it the first time.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            } else {
+                // A unit of work that failed midway may have left a batch behind
+                stmt.clearParameters();
+                stmt.clearBatch();
+            }
+            return stmt;
+        }
+
+        void close() throws SQLException {
+            for (PreparedStatement stmt : statements.values()) {
+                stmt.close();
+            }
+            statements.clear();
+            connection.close();
+        }
+    }
+
+    private final HikariDataSource pool;
+    private final Session writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // No-op until bindMetrics() is called
+    private Timer readTimer = Timer.builder("db.read").register(new CompositeMeterRegistry());
+    private Timer writeTimer = readTimer;
+    private Timer lockTimer = readTimer;
+
+    public Database(String url, int poolSize) throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        config.setBusyTimeout(5000);
+
+        HikariConfig hikari = new HikariConfig();
+        hikari.setPoolName("sqlite-readers");
+        hikari.setDriverClassName("org.sqlite.JDBC");
+        hikari.setJdbcUrl(url);
+        hikari.setMaximumPoolSize(poolSize);
+        hikari.setDataSourceProperties(config.toProperties());
+        this.pool = new HikariDataSource(hikari);
+
+        this.writer = new Session(DriverManager.getConnection(url, config.toProperties()));
+    }
+
+    public Database() throws SQLException {
+        this(DEFAULT_URL, 8);
+    }
+
+    /**
+     * Time reads, write transactions and the wait for the writer lock.
+     */
+    public void bindMetrics(MeterRegistry registry) {
+        readTimer = Metrics.latency(registry, "db.read", "Read on a pooled connection");
+        writeTimer = Metrics.latency(registry, "db.write", "Write transaction, including commit");
+        lockTimer = Metrics.latency(registry, "db.write.lock", "Wait for the single writer connection");
+    }
+
+    /**
+     * Pooled data source for reads, e.g. to back a JdbcTemplate.
+     */
+    public DataSource getDataSource() {
+        return pool;
+    }
+
+    /**
+     * Run the work in a transaction on the single writer connection. Writes
+     * from every thread of the process are serialized here, so they never
+     * race each other for the SQLite write lock.
+     */
+    public <T> T write(Work<T> work) throws SQLException {
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            if (writeLock.getHoldCount() > 1) {
+                // Nested call, already inside the outer transaction
+                return work.run(writer);
+            }
+            long locked = System.nanoTime();
+            lockTimer.record(locked - start, TimeUnit.NANOSECONDS);
+            Connection connection = writer.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                T result = work.run(writer);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+                writeTimer.record(System.nanoTime() - locked, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Run the work on a pooled connection. Statements are not cached across
+     * calls since the connection goes back to the pool afterwards.
+     */
+    public <T> T read(Work<T> work) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = pool.getConnection()) {
+            Session session = new Session(connection);
+            try {
+                return work.run(session);
+            } finally {
+                for (PreparedStatement stmt : session.statements.values()) {
+                    stmt.close();
+                }
+                readTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Schema migrations in order. The schema version is kept in the SQLite
+     * user_version pragma, migration i brings the database to version i + 1.
+     */
+    private static final String[][] MIGRATIONS = {
+            // 1: original schema, coordinates as "lat,long" strings
+            {
+                    "CREATE TABLE IF NOT EXISTS drones ("
+                            + "drone_id STRING PRIMARY KEY,"
+                            + "curr_latlong STRING,"
+                            + "curr_battery STRING DEFAULT '0',"
+                            + "curr_status STRING,"
+                            + "curr_request_id STRING)",
+                    "CREATE TABLE IF NOT EXISTS requests ("
+                            + "request_id STRING PRIMARY KEY,"
+                            + "origin_latlong STRING NOT NULL,"
+                            + "dest_latlong STRING NOT NULL,"
+                            + "weight INT NOT NULL,"
+                            + "drone_id STRING,"
+                            + "curr_status STRING NOT NULL DEFAULT 'pending',"
+                            + "curr_latlong STRING)"
+            },
+            // 2: typed coordinates, integer battery, status codes and indexes
+            {
+                    "CREATE TABLE drones_v2 ("
+                            + "drone_id TEXT PRIMARY KEY,"
+                            + "curr_lat REAL,"
+                            + "curr_lon REAL,"
+                            + "curr_battery INTEGER NOT NULL DEFAULT 0,"
+                            + "curr_status INTEGER NOT NULL DEFAULT " + DroneStatus.OFFLINE.code + ","
+                            + "curr_request_id TEXT)",
+                    "INSERT INTO drones_v2 SELECT drone_id,"
+                            + latSql("curr_latlong") + "," + lonSql("curr_latlong") + ","
+                            + "CAST(COALESCE(curr_battery, 0) AS INTEGER),"
+                            + droneStatusSql("curr_status") + ","
+                            + "curr_request_id FROM drones",
+                    "DROP TABLE drones",
+                    "ALTER TABLE drones_v2 RENAME TO drones",
+                    "CREATE TABLE requests_v2 ("
+                            + "request_id TEXT PRIMARY KEY,"
+                            + "origin_lat REAL NOT NULL,"
+                            + "origin_lon REAL NOT NULL,"
+                            + "dest_lat REAL NOT NULL,"
+                            + "dest_lon REAL NOT NULL,"
+                            + "weight INTEGER NOT NULL,"
+                            + "drone_id TEXT,"
+                            + "curr_status INTEGER NOT NULL DEFAULT " + RequestStatus.PENDING.code + ","
+                            + "curr_lat REAL,"
+                            + "curr_lon REAL)",
+                    "INSERT INTO requests_v2 SELECT request_id,"
+                            + latSql("origin_latlong") + "," + lonSql("origin_latlong") + ","
+                            + latSql("dest_latlong") + "," + lonSql("dest_latlong") + ","
+                            + "weight, drone_id,"
+                            + requestStatusSql("curr_status") + ","
+                            + latSql("curr_latlong") + "," + lonSql("curr_latlong")
+                            + " FROM requests",
+                    "DROP TABLE requests",
+                    "ALTER TABLE requests_v2 RENAME TO requests",
+                    // Pending/cancelling scans, rows come back in ROWID order
+                    "CREATE INDEX idx_requests_status ON requests (curr_status)",
+                    // Covers the duplicate check in Api.request
+                    "CREATE INDEX idx_requests_route ON requests (origin_lat, origin_lon, dest_lat, dest_lon, curr_status)",
+                    "CREATE INDEX idx_requests_drone ON requests (drone_id)",
+                    "CREATE INDEX idx_drones_status ON drones (curr_status)"
+            },
+            // 3: director membership and partition leases, see ShardCoordinator
+            {
+                    "CREATE TABLE directors ("
+                            + "director_id TEXT PRIMARY KEY,"
+                            + "heartbeat_at INTEGER NOT NULL)",
+                    "CREATE TABLE shard_leases ("
+                            + "shard INTEGER PRIMARY KEY,"
+                            + "owner TEXT NOT NULL,"
+                            + "expires_at INTEGER NOT NULL)"
+            },
+            // 4: client supplied idempotency keys, see RequestIntake. NULLs do not collide
+            {
+                    "ALTER TABLE requests ADD COLUMN idempotency_key TEXT",
+                    "CREATE UNIQUE INDEX idx_requests_idempotency ON requests (idempotency_key)"
+            },
+            // 5: when a drone's row was last flushed, journal replay never rolls it back
+            {
+                    "ALTER TABLE drones ADD COLUMN updated_at INTEGER NOT NULL DEFAULT 0"
+            }
+    };
+
+    private static String latSql(String column) {
+        return "CAST(substr(" + column + ", 1, instr(" + column + ", ',') - 1) AS REAL)";
+    }
+
+    private static String lonSql(String column) {
+        return "CAST(substr(" + column + ", instr(" + column + ", ',') + 1) AS REAL)";
+    }
+
+    private static String droneStatusSql(String column) {
+        StringBuilder sql = new StringBuilder("CASE lower(" + column + ")");
+        for (DroneStatus status : DroneStatus.values()) {
+            sql.append(" WHEN '").append(status.label).append("' THEN ").append(status.code);
+        }
+        return sql.append(" ELSE ").append(DroneStatus.OFFLINE.code).append(" END").toString();
+    }
+
+    private static String requestStatusSql(String column) {
+        StringBuilder sql = new StringBuilder("CASE lower(" + column + ")");
+        for (RequestStatus status : RequestStatus.values()) {
+            sql.append(" WHEN '").append(status.label).append("' THEN ").append(status.code);
+        }
+        return sql.append(" ELSE ").append(RequestStatus.PENDING.code).append(" END").toString();
+    }
+
+    /**
+     * Bring the schema up to date, creating it on a new database file and
+     * converting older files in place.
+     */
+    public void migrate() throws SQLException {
+        write(session -> {
+            int version;
+            try (Statement stmt = session.getConnection().createStatement();
+                    ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+                version = rs.next() ? rs.getInt(1) : 0;
+            }
+            for (int i = version; i < MIGRATIONS.length; i++) {
+                System.out.println("Migrating database schema to version " + (i + 1));
+                try (Statement stmt = session.getConnection().createStatement()) {
+                    for (String sql : MIGRATIONS[i]) {
+                        stmt.execute(sql);
+                    }
+                    stmt.execute("PRAGMA user_version = " + (i + 1));
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            writer.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            writeLock.unlock();
+        }
+        pool.close();
+    }
+}
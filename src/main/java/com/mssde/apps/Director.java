@@ -1,28 +1,128 @@
 package com.mssde.apps;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
-import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
-import static java.lang.Math.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Director {
 
     private String brokerUrl;
     private String clientId;
-    private MqttClient mqttClient;
-    private Connection dbConnection;
+    private MqttAsyncClient mqttClient;
+    private CommandPipeline commands;
+    private HeartbeatWheel liveness;
+    private EventJournal journal;
+    private long checkpointIntervalMs = 30000;
+    // Cancellation fast path: when each cancel event arrived, when each
+    // cancellation was first seen by a pass and which drones were told
+    private final Map<String, Long> cancelEvents = new ConcurrentHashMap<>();
+    private final Map<String, Long> cancelStarted = new ConcurrentHashMap<>();
+    private final Set<String> cancelsSent = ConcurrentHashMap.newKeySet();
+    private final PrometheusMeterRegistry registry = Metrics.newRegistry();
+    private final Timer messageTimer = Metrics.latency(registry, "director.message.handling",
+            "Handling of one drone status message");
+    private final Timer passTimer = Metrics.latency(registry, "director.assignment.pass",
+            "One dispatcher pass, cancellations and assignments");
+    private final Timer cancelTimer = Metrics.latency(registry, "director.cancel.latency",
+            "From the cancel event to the drone being free again");
+    private final Timer optimizeTimer = Metrics.latency(registry, "director.planner.optimize",
+            "Route search over a snapshot of the planned missions");
+    private final Counter messagesReceived = Counter.builder("director.messages.received")
+            .description("Inbound MQTT messages").register(registry);
+    private final Counter deliveries = Counter.builder("director.requests.delivered")
+            .description("Requests delivered at their destination").register(registry);
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private Database database;
+    private FleetStore fleet;
+    private long flushIntervalMs;
+    private AssignmentStrategy strategy;
+    private Dispatcher dispatcher;
+    private long sweepIntervalMs = 60000;
+    private ShardCoordinator shards;
+    private ScheduledExecutorService leaseRenewer;
+    private MissionPlanner planner;
+    // Whether the last pass found no drone to work with, dispatcher thread only
+    private boolean noDrones;
+    // Time given to the route search on each pass
+    private long optimizeBudgetMs = 20;
+    // Runs the route search, one at a time, off the dispatcher thread
+    private final ExecutorService optimizer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "route-optimizer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean optimizing = new AtomicBoolean();
+    // Drones that reported back from a leg of their mission
+    private final ConcurrentLinkedQueue<String> arrivals = new ConcurrentLinkedQueue<>();
+    // Drones that timed out, left a last will or cannot be reached, handled
+    // between passes so a pass never assigns a drone that is being taken out
+    private final ConcurrentLinkedQueue<String> lostDrones = new ConcurrentLinkedQueue<>();
+    private final TelemetryCodec.Status incomingStatus = new TelemetryCodec.Status();
+    // Journal holder for droneLost(), dispatcher thread only
+    private final TelemetryCodec.Status lostStatus = new TelemetryCodec.Status();
 
     public Director(String brokerUrl, String clientId) throws MqttException {
+        this(brokerUrl, clientId, 1000, new AuctionAssignment());
+    }
+
+    public Director(String brokerUrl, String clientId, long flushIntervalMs, AssignmentStrategy strategy)
+            throws MqttException {
+        this(brokerUrl, clientId, flushIntervalMs, strategy, Database.DEFAULT_URL, Paths.get("journal", clientId));
+    }
+
+    /**
+     * Director on the given database and journal directory, the benchmarks
+     * use it to run against an in-memory database.
+     */
+    Director(String brokerUrl, String clientId, long flushIntervalMs, AssignmentStrategy strategy,
+            String databaseUrl, Path journalDir) throws MqttException {
         this.brokerUrl = brokerUrl;
         this.clientId = clientId;
-        this.mqttClient = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
-        this.mqttClient.setCallback(new MqttCallback() {
+        this.flushIntervalMs = flushIntervalMs;
+        this.strategy = strategy;
+        this.dispatcher = new Dispatcher(this::dispatch);
+        this.mqttClient = new MqttAsyncClient(brokerUrl, clientId, new MemoryPersistence());
+        this.commands = new CommandPipeline(mqttClient, 256, 5, 500, this::revertAssignment);
+        // 1 second ticks, one revolution every ~8.5 minutes
+        this.liveness = new HeartbeatWheel(512, 1000, this::droneTimedOut);
+        this.mqttClient.setCallback(new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                // Clean sessions lose their subscriptions on reconnect
+                if (reconnect) {
+                    System.out.println("Reconnected, resubscribing");
+                    subscribeEvents();
+                    List<String> droneIds = new ArrayList<>();
+                    for (FleetStore.DroneState drone : fleet.all()) {
+                        droneIds.add(drone.getDroneId());
+                    }
+                    subscribeStatus(droneIds);
+                }
+            }
+
             @Override
             public void connectionLost(Throwable throwable) {
                 System.out.println("Connection lost!");
@@ -30,253 +130,1087 @@ public class Director {
 
             @Override
             public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
-                processIncomingMessage(s, new String(mqttMessage.getPayload()));
+                messagesReceived.increment();
+                if (s.equals(EventPublisher.NEW_REQUEST_TOPIC)) {
+                    dispatcher.signal(Dispatcher.Event.NEW_REQUEST);
+                } else if (s.equals(EventPublisher.CANCEL_TOPIC)) {
+                    cancelEvents.put(new String(mqttMessage.getPayload()), System.nanoTime());
+                    dispatcher.signal(Dispatcher.Event.CANCELLING);
+                } else {
+                    long start = System.nanoTime();
+                    processIncomingMessage(s, mqttMessage.getPayload());
+                    messageTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
             }
 
             @Override
             public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
-                // TODO: finish implementing
+                // Commands are tracked per message by CommandPipeline, status
+                // change notifications are fire and forget
             }
         });
 
         try {
-            this.dbConnection = DriverManager.getConnection("jdbc:sqlite:dronesystem.db");
-            createTablesIfNotExist();
-        } catch (SQLException e) {
+            this.database = new Database(databaseUrl, 8);
+            database.migrate();
+            this.fleet = new FleetStore(database);
+            this.planner = new MissionPlanner(fleet);
+            this.shards = new ShardCoordinator(database, clientId);
+            // 64 MB segments, keeping 8 of them as history past the checkpoint
+            this.journal = new EventJournal(journalDir, 64 << 20, 8, 10);
+            bindMetrics();
+        } catch (SQLException | IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
 
-    private void createTablesIfNotExist() throws SQLException {
-        Statement stmt = dbConnection.createStatement();
-        String dronesTable = "CREATE TABLE IF NOT EXISTS drones ("
-                + "drone_id STRING PRIMARY KEY,"
-                + "curr_latlong STRING,"
-                + "curr_battery STRING DEFAULT '0',"
-                + "curr_status STRING,"
-                + "curr_request_id STRING);";
-        stmt.execute(dronesTable);
+    FleetStore getFleet() {
+        return fleet;
+    }
 
-        String requestsTable = "CREATE TABLE IF NOT EXISTS requests ("
-                + "request_id STRING PRIMARY KEY,"
-                + "origin_latlong STRING NOT NULL,"
-                + "dest_latlong STRING NOT NULL,"
-                + "weight INT NOT NULL,"
-                + "drone_id STRING,"
-                + "curr_status STRING NOT NULL DEFAULT 'pending',"
-                + "curr_latlong STRING);";
-        stmt.execute(requestsTable);
-        stmt.close();
+    /**
+     * Release what the constructor opened, for a Director that is built but
+     * never run, e.g. by the benchmarks. run() installs its own shutdown hook.
+     */
+    void close() {
+        optimizer.shutdownNow();
+        commands.shutdown();
+        liveness.stop();
+        journal.close();
+        database.close();
+        try {
+            mqttClient.close();
+        } catch (MqttException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void bindMetrics() {
+        database.bindMetrics(registry);
+        commands.bindMetrics(registry);
+        Gauge.builder("director.requests.pending", pendingCount, AtomicInteger::get)
+                .description("Pending requests of our partitions seen by the last pass").register(registry);
+        Gauge.builder("director.dispatcher.queue", dispatcher, Dispatcher::pendingEvents)
+                .description("Event types waiting for the dispatcher").register(registry);
+        Gauge.builder("director.drones.idle", fleet, FleetStore::idleCount).register(registry);
+        Gauge.builder("director.drones.busy", fleet, FleetStore::busyCount).register(registry);
+        Gauge.builder("director.drones.tracked", liveness, HeartbeatWheel::size)
+                .description("Drones with a heartbeat deadline").register(registry);
+        Gauge.builder("director.missions.active", planner, MissionPlanner::missionCount)
+                .description("Drones flying a mission").register(registry);
+        Gauge.builder("director.missions.planned", planner, MissionPlanner::plannedCount)
+                .description("Pending requests planned after a drone's current one").register(registry);
+        Gauge.builder("director.partitions.owned", shards, ShardCoordinator::ownedCount).register(registry);
     }
 
     public void run() throws MqttException {
-        mqttClient.connect();
-        List<String> droneIds = getDroneIdsFromDB();
-        for (String droneId : droneIds) {
-            mqttClient.subscribe("status/" + droneId);
-        }
+        MqttConnectOptions connOpts = new MqttConnectOptions();
+        connOpts.setCleanSession(true);
+        connOpts.setAutomaticReconnect(true);
+        // Room for the pipeline's commands plus the QoS 0 notifications
+        connOpts.setMaxInflight(1024);
+        mqttClient.connect(connOpts).waitForCompletion();
+        // Bring the tables up to date with the journal, then claim our
+        // partitions and subscribe to their drones before dispatching
+        recover();
+        rebalance();
+        // Leases are renewed on a thread of their own, a long pass or a busy
+        // dispatcher cannot let them lapse
+        leaseRenewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-renewer");
+            t.setDaemon(true);
+            return t;
+        });
+        leaseRenewer.scheduleWithFixedDelay(this::renewLeases, ShardCoordinator.RENEW_INTERVAL_MS,
+                ShardCoordinator.RENEW_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        fleet.startFlusher(flushIntervalMs);
+        Metrics.serve(registry);
+        liveness.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            commands.shutdown();
+            liveness.stop();
+            fleet.stopFlusher();
+            checkpoint();
+            journal.close();
+            leaseRenewer.shutdownNow();
+            optimizer.shutdownNow();
+            shards.leave();
+        }));
+        subscribeEvents();
+        dispatcher.start();
+        // Passes are triggered by events, this slow sweep only catches anything
+        // that was missed (e.g. requests inserted while the broker was down).
+        // Partitions change hands on the dispatcher thread, so ownership never
+        // changes in the middle of a pass
+        long nextSweep = 0;
+        long nextCheckpoint = System.currentTimeMillis() + checkpointIntervalMs;
         while (true) {
-            // TODO: refactor for requests in "cancelling" status, to send cancellation to
-            // drone
-            processPendingRequests();
+            long now = System.currentTimeMillis();
+            if (now >= nextSweep) {
+                dispatcher.signal(Dispatcher.Event.SWEEP);
+                nextSweep = now + sweepIntervalMs;
+            }
+            if (now >= nextCheckpoint) {
+                checkpoint();
+                nextCheckpoint = now + checkpointIntervalMs;
+            }
+            dispatcher.signal(Dispatcher.Event.REBALANCE);
             try {
-                Thread.sleep(10000); // 10 seconds
+                Thread.sleep(Math.min(sweepIntervalMs, ShardCoordinator.RENEW_INTERVAL_MS));
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    private void processIncomingMessage(String topic, String message) {
-        // This method handles messages coming from the drones through the
-        // /status/<drone_id> queues
+    /**
+     * Replay the journal past the last checkpoint into the database. Covers
+     * telemetry the write-behind flusher had not persisted yet and request
+     * transitions whose transaction did not commit. Transitions only apply
+     * if the request is still in the state they started from, and drone
+     * events only if the row was not flushed after them, e.g. by the director
+     * that owned the drone while this one was down.
+     */
+    private void recover() {
+        try {
+            long checkpoint = journal.readCheckpoint();
+            Map<String, EventJournal.Event> drones = new HashMap<>();
+            List<EventJournal.Event> transitions = new ArrayList<>();
+            long start = System.nanoTime();
+            long count = journal.replay(checkpoint, event -> {
+                if (event.type == EventJournal.DRONE_STATUS) {
+                    EventJournal.Event latest = drones.get(event.droneId);
+                    if (latest == null) {
+                        drones.put(event.droneId, event.copy());
+                    } else {
+                        event.copyTo(latest);
+                    }
+                } else {
+                    transitions.add(event.copy());
+                }
+            });
+            long elapsed = System.nanoTime() - start;
+            if (count == 0) {
+                return;
+            }
+            database.write(session -> {
+                PreparedStatement droneStmt = session.prepare(
+                        "UPDATE drones SET curr_lat = ?, curr_lon = ?, curr_battery = ?, curr_status = ?, updated_at = ? "
+                                + "WHERE drone_id = ? AND updated_at <= ?");
+                for (EventJournal.Event event : drones.values()) {
+                    droneStmt.setDouble(1, event.lat);
+                    droneStmt.setDouble(2, event.lon);
+                    droneStmt.setInt(3, event.battery);
+                    droneStmt.setInt(4, event.droneStatus.code);
+                    droneStmt.setLong(5, event.time);
+                    droneStmt.setString(6, event.droneId);
+                    droneStmt.setLong(7, event.time);
+                    droneStmt.addBatch();
+                }
+                PreparedStatement requestStmt = session.prepare(
+                        "UPDATE requests SET curr_status = ?, drone_id = ? WHERE request_id = ? AND curr_status = ?");
+                for (EventJournal.Event event : transitions) {
+                    requestStmt.setInt(1, event.to.code);
+                    requestStmt.setString(2, event.droneId);
+                    requestStmt.setString(3, event.requestId());
+                    requestStmt.setInt(4, event.from.code);
+                    requestStmt.addBatch();
+                }
+                if (!drones.isEmpty()) {
+                    droneStmt.executeBatch();
+                }
+                if (!transitions.isEmpty()) {
+                    requestStmt.executeBatch();
+                }
+                return null;
+            });
+            journal.checkpoint(journal.lastSeq());
+            System.out.printf("Replayed %d journal events in %d ms (%.0f events/s): %d drones, %d transitions%n",
+                    count, TimeUnit.NANOSECONDS.toMillis(elapsed), count / (elapsed / 1e9), drones.size(),
+                    transitions.size());
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+    }
 
-        // NOTE: we expect last will from drones to mark them as offline
+    /**
+     * Persist the fleet and mark everything journaled so far as being in the
+     * database. The events older than the checkpoint are no longer needed to
+     * recover. Drone events are journaled only once the fleet holds them, so
+     * the flush sees every event up to the seq read before it.
+     */
+    void checkpoint() {
+        long seq = journal.lastSeq();
+        if (!fleet.flush()) {
+            // Keep replaying from the previous checkpoint
+            return;
+        }
+        try {
+            journal.checkpoint(seq);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        // Parse the incoming messages
-        JSONObject jsonMessage = new JSONObject(message);
+    private void syncJournal(long seq) {
+        try {
+            journal.sync(seq);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        // Extract the drone_id from the topic
-        String droneId = topic.replace("status/", "");
-
-        try (
-
-                PreparedStatement selectDroneStmt = dbConnection
-                        .prepareStatement("SELECT * FROM drones WHERE drone_id = ?");
-                PreparedStatement updateDroneStmt = dbConnection.prepareStatement(
-                        "UPDATE drones SET curr_latlong = ?, curr_battery = ?, curr_status = ? WHERE drone_id = ?");
-                PreparedStatement selectRequestStmt = dbConnection.prepareStatement(
-                        "SELECT * FROM requests WHERE drone_id IS NULL AND curr_status = 'pending' ORDER BY ROWID ASC LIMIT 1");
-                PreparedStatement updateRequestStmt = dbConnection.prepareStatement(
-                        "UPDATE requests SET drone_id = ?, curr_status = 'assigned' WHERE request_id = ?")) {
-
-            // Update the drones table with the information from the incoming message
-            selectDroneStmt.setString(1, droneId);
-
-            try (ResultSet rs = selectDroneStmt.executeQuery()) {
-                if (rs.next()) {
-                    updateDroneStmt.setString(1, jsonMessage.getString("curr_latlong"));
-                    updateDroneStmt.setString(2, jsonMessage.getString("curr_battery"));
-                    updateDroneStmt.setString(3, jsonMessage.getString("status"));
-                    updateDroneStmt.setString(4, droneId);
-                    updateDroneStmt.executeUpdate();
-                } else {
-                    // Handle the case where the drone_id from the incoming message does not exist
-                    // in the drones table
-                    System.out.println("Warning: Received status for unknown drone ID: " + droneId);
-                    return;
+    /**
+     * Renew our leases, move drones in and out of the fleet as partitions
+     * change hands and subscribe to drones registered since the last round.
+     */
+    private void rebalance() {
+        try {
+            shards.rebalance(new ShardCoordinator.Listener() {
+                @Override
+                public void partitionsLost(BitSet partitions) {
+                    List<String> removed = fleet.evict(id -> partitions.get(ShardCoordinator.partitionOf(id)));
+                    for (String droneId : removed) {
+                        liveness.remove(droneId);
+                        planner.release(droneId);
+                    }
+                    unsubscribeStatus(removed);
+                    System.out.println("Handed over " + partitions.cardinality() + " partitions with "
+                            + removed.size() + " drones");
+                }
+
+                @Override
+                public void partitionsGained(BitSet partitions) {
+                    try {
+                        List<String> added = fleet.loadFromDatabase(
+                                id -> partitions.get(ShardCoordinator.partitionOf(id)));
+                        subscribeStatus(added);
+                        trackLiveness(added);
+                        resumeMissions(added);
+                        System.out.println("Took over " + partitions.cardinality() + " partitions with "
+                                + added.size() + " drones, owning " + shards.ownedCount() + " of "
+                                + ShardCoordinator.PARTITIONS);
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    }
                 }
+            });
+            List<String> registered = fleet.loadNewFromDatabase(shards::ownsKey);
+            if (!registered.isEmpty()) {
+                subscribeStatus(registered);
+                trackLiveness(registered);
+                System.out.println("Subscribed to " + registered.size() + " new drones");
             }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
 
-            // If a drone reports its status as 'idle', check if there's a pending request
-            // that can be assigned to it
-            if ("idle".equalsIgnoreCase(jsonMessage.getString("status"))) {
-                try (ResultSet rs = selectRequestStmt.executeQuery()) {
-                    if (rs.next()) {
-                        String requestId = rs.getString("request_id");
-                        String originLatLong = rs.getString("origin_latlong");
-                        String destLatLong = rs.getString("dest_latlong");
-                        int weight = rs.getInt("weight");
-
-                        // Update the request to assign it to the drone
-                        updateRequestStmt.setString(1, droneId);
-                        updateRequestStmt.setString(2, requestId);
-                        updateRequestStmt.executeUpdate();
-
-                        // Send a command to the drone to process the request
-                        JSONObject commandMessage = new JSONObject();
-                        commandMessage.put("request_id", requestId);
-                        commandMessage.put("dest_latlong", originLatLong);
-                        commandMessage.put("weight", weight);
-                        mqttClient.publish("command/" + droneId, commandMessage.toString().getBytes(), 0, false);
+    /**
+     * Pick up the missions of drones that already have a request, e.g.
+     * after a restart or when taking over a partition. The current leg is
+     * sent again, a drone already flying it ignores the command.
+     */
+    private void resumeMissions(List<String> droneIds) throws SQLException {
+        if (droneIds.isEmpty()) {
+            return;
+        }
+        Set<String> added = Set.copyOf(droneIds);
+        List<String> owners = new ArrayList<>();
+        List<AssignmentStrategy.PendingRequest> requests = new ArrayList<>();
+        List<MissionPlanner.Leg> legs = new ArrayList<>();
+        database.read(session -> {
+            PreparedStatement selectStmt = session.prepare(
+                    "SELECT request_id, origin_lat, origin_lon, dest_lat, dest_lon, weight, drone_id, curr_status FROM requests WHERE curr_status IN (?, ?)");
+            selectStmt.setInt(1, RequestStatus.ASSIGNED.code);
+            selectStmt.setInt(2, RequestStatus.ON_ROUTE.code);
+            try (ResultSet rs = selectStmt.executeQuery()) {
+                while (rs.next()) {
+                    String droneId = rs.getString("drone_id");
+                    if (droneId == null || !added.contains(droneId)) {
+                        continue;
                     }
+                    owners.add(droneId);
+                    requests.add(new AssignmentStrategy.PendingRequest(rs.getString("request_id"),
+                            rs.getDouble("origin_lat"), rs.getDouble("origin_lon"),
+                            rs.getDouble("dest_lat"), rs.getDouble("dest_lon"),
+                            rs.getInt("weight")));
+                    legs.add(rs.getInt("curr_status") == RequestStatus.ON_ROUTE.code
+                            ? MissionPlanner.Leg.DELIVERY : MissionPlanner.Leg.PICKUP);
                 }
             }
-        } catch (SQLException | MqttException e) {
+            return null;
+        });
+        for (int i = 0; i < owners.size(); i++) {
+            String droneId = owners.get(i);
+            fleet.assign(droneId, requests.get(i).requestId);
+            planner.start(droneId, requests.get(i), legs.get(i));
+            flyLeg(droneId);
+        }
+        if (!owners.isEmpty()) {
+            System.out.println("Resumed " + owners.size() + " missions");
+        }
+    }
+
+    /**
+     * Give drones that were not heard from yet one timeout to report, so
+     * the ones that died while no director was watching get noticed too.
+     */
+    private void trackLiveness(List<String> droneIds) {
+        for (String droneId : droneIds) {
+            FleetStore.DroneState drone = fleet.get(droneId);
+            if (drone != null && drone.getStatus() != DroneStatus.OFFLINE) {
+                liveness.track(droneId);
+            }
+        }
+    }
+
+    private void subscribeEvents() {
+        try {
+            mqttClient.subscribe(new String[] { EventPublisher.NEW_REQUEST_TOPIC, EventPublisher.CANCEL_TOPIC },
+                    new int[2]);
+        } catch (MqttException e) {
             e.printStackTrace();
         }
     }
 
+    private void subscribeStatus(List<String> droneIds) {
+        // Subscribe in batches, one round trip per batch instead of per drone
+        int batch = 100;
+        for (int from = 0; from < droneIds.size(); from += batch) {
+            List<String> slice = droneIds.subList(from, Math.min(droneIds.size(), from + batch));
+            String[] topics = new String[slice.size()];
+            for (int i = 0; i < topics.length; i++) {
+                topics[i] = "status/" + slice.get(i);
+            }
+            try {
+                mqttClient.subscribe(topics, new int[topics.length]);
+            } catch (MqttException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void unsubscribeStatus(List<String> droneIds) {
+        int batch = 100;
+        for (int from = 0; from < droneIds.size(); from += batch) {
+            List<String> slice = droneIds.subList(from, Math.min(droneIds.size(), from + batch));
+            String[] topics = new String[slice.size()];
+            for (int i = 0; i < topics.length; i++) {
+                topics[i] = "status/" + slice.get(i);
+            }
+            try {
+                mqttClient.unsubscribe(topics);
+            } catch (MqttException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
-     * Calculate distance between two points in latitude and longitude.
-     * Haversine formula
+     * Search for better routes on the optimizer thread, against a snapshot
+     * taken now. Skipped while the previous search is still running, the
+     * next pass takes a fresh snapshot anyway, and when no route changed.
      */
-    public double calcDistance(double origLat, double origLong, double destLat, double destLong) {
-        final int R = 6371; // Radius of the earth in km
-        double dLat = toRadians(destLat - origLat);
-        double dLon = toRadians(destLong - origLong);
-        double a = sin(dLat / 2) * sin(dLat / 2) +
-                        cos(toRadians(origLat)) * cos(toRadians(destLat)) *
-                        sin(dLon / 2) * sin(dLon / 2);
-        double c = 2 * atan2(sqrt(a), sqrt(1 - a));
-        double distance = R * c; // Convert to meters
-        return distance * 1000;
+    private void optimizeRoutes() {
+        if (planner.plannedCount() == 0 || !optimizing.compareAndSet(false, true)) {
+            return;
+        }
+        MissionPlanner.Snapshot snapshot = planner.snapshot();
+        if (snapshot == null) {
+            // Nothing changed since the last search
+            optimizing.set(false);
+            return;
+        }
+        optimizer.execute(() -> {
+            try {
+                long start = System.nanoTime();
+                snapshot.optimize(Integer.MAX_VALUE, optimizeBudgetMs);
+                planner.apply(snapshot);
+                optimizeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            } finally {
+                optimizing.set(false);
+            }
+        });
     }
 
-    private void processPendingRequests() {
+    private void renewLeases() {
         try {
-            Statement stmt = dbConnection.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM requests WHERE curr_status = 'pending'");
-            while (rs.next()) {
-                List<Map<String, String>> availableDrones = getAvailableDrones(dbConnection);
-                if (availableDrones.isEmpty()) {
-                    System.out.println("No available drones in the system to process requests");
-                    return;
+            if (shards.renew()) {
+                // Some partition was taken while our lease had lapsed
+                dispatcher.signal(Dispatcher.Event.REBALANCE);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Checked right before writing on behalf of our partitions. The lease
+     * fenced updates would be rejected anyway, this also keeps the unfenced
+     * ones from touching rows a peer may own by now.
+     */
+    private boolean leasesValid() {
+        if (shards.leasesValid()) {
+            return true;
+        }
+        System.out.println("Warning: Leases not renewed in time, holding writes back");
+        return false;
+    }
+
+    /**
+     * Single assignment pass for a batch of coalesced events.
+     */
+    private void dispatch(EnumSet<Dispatcher.Event> events) {
+        if (events.contains(Dispatcher.Event.REBALANCE)) {
+            int before = shards.ownedCount();
+            rebalance();
+            if (events.size() == 1 && shards.ownedCount() <= before && arrivals.isEmpty() && lostDrones.isEmpty()) {
+                // Nothing changed hands, nothing new to assign
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        String lost;
+        while ((lost = lostDrones.poll()) != null) {
+            droneLost(lost);
+        }
+        if (events.contains(Dispatcher.Event.CANCELLING) || events.contains(Dispatcher.Event.SWEEP)) {
+            processCancellingRequests();
+        }
+        processArrivals();
+        processPendingRequests();
+        passTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Close cancelled requests. Those no drone is working on are closed right
+     * away. Otherwise a cancel goes to the drone, and the request is closed
+     * once the drone reports back free.
+     */
+    private void processCancellingRequests() {
+        List<String> cancelled = new ArrayList<>();
+        List<String> cancelledDrones = new ArrayList<>();
+        List<String[]> toDrones = new ArrayList<>();
+        long now = System.nanoTime();
+        if (!leasesValid()) {
+            return;
+        }
+        try {
+            database.write(session -> {
+                PreparedStatement selectStmt = session.prepare(
+                        "SELECT request_id, drone_id FROM requests WHERE curr_status = ?");
+                selectStmt.setInt(1, RequestStatus.CANCELLING.code);
+                try (ResultSet rs = selectStmt.executeQuery()) {
+                    while (rs.next()) {
+                        String requestId = rs.getString("request_id");
+                        String droneId = rs.getString("drone_id");
+                        // Unassigned requests belong to the request's shard, the
+                        // others to the shard of the drone flying them
+                        if (!shards.ownsKey(droneId == null ? requestId : droneId)) {
+                            continue;
+                        }
+                        Long received = cancelEvents.remove(requestId);
+                        cancelStarted.putIfAbsent(requestId, received != null ? received : now);
+                        FleetStore.DroneState drone = droneId == null ? null : fleet.get(droneId);
+                        if (drone == null || !isWorkingOn(drone, requestId)) {
+                            cancelled.add(requestId);
+                            cancelledDrones.add(droneId);
+                        } else if (cancelsSent.add(requestId)) {
+                            toDrones.add(new String[] { requestId, droneId });
+                        }
+                    }
                 }
+                PreparedStatement updateStmt = session.prepare(
+                        "UPDATE requests SET curr_status = ? WHERE request_id = ?");
+                for (String requestId : cancelled) {
+                    updateStmt.setInt(1, RequestStatus.CANCELLED.code);
+                    updateStmt.setString(2, requestId);
+                    updateStmt.addBatch();
+                }
+                if (cancelled.isEmpty()) {
+                    return null;
+                }
+                updateStmt.executeBatch();
+                long seq = 0;
+                for (int i = 0; i < cancelled.size(); i++) {
+                    seq = journal.appendRequestStatus(cancelled.get(i), RequestStatus.CANCELLING,
+                            RequestStatus.CANCELLED, cancelledDrones.get(i));
+                }
+                syncJournal(seq);
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return;
+        }
+        // Events for requests of other shards are never claimed
+        cancelEvents.values().removeIf(received -> now - received > TimeUnit.MINUTES.toNanos(1));
+
+        for (int i = 0; i < cancelled.size(); i++) {
+            String requestId = cancelled.get(i);
+            String droneId = cancelledDrones.get(i);
+            MissionPlanner.Mission mission = droneId == null ? null : planner.get(droneId);
+            if (mission != null && requestId.equals(mission.getRequest().requestId)) {
+                planner.release(droneId);
+            }
+            planner.forget(requestId);
+            cancelsSent.remove(requestId);
+            Long started = cancelStarted.remove(requestId);
+            if (started != null) {
+                recordCancelLatency(requestId, System.nanoTime() - started);
+            }
+            publishStatusChange(requestId);
+        }
+        for (String[] target : toDrones) {
+            String requestId = target[0];
+            String droneId = target[1];
+            FleetStore.DroneState drone = fleet.get(droneId);
+            if (drone == null) {
+                // Handed over meanwhile, the new owner sends the cancel
+                cancelsSent.remove(requestId);
+                continue;
+            }
+            byte[] payload;
+            if (drone.isBinary()) {
+                payload = new byte[TelemetryCodec.CANCEL_SIZE];
+                TelemetryCodec.encodeCancel(requestId, payload);
+            } else {
+                payload = TelemetryCodec.cancelToJson(requestId);
+            }
+            // Replaces the assignment command if it is still being retried
+            commands.send(requestId, droneId, payload);
+        }
+    }
+
+    private static boolean isWorkingOn(FleetStore.DroneState drone, String requestId) {
+        DroneStatus status = drone.getStatus();
+        return (status == DroneStatus.ASSIGNED || status == DroneStatus.ON_ROUTE)
+                && requestId.equals(drone.getRequestId());
+    }
+
+    private void recordCancelLatency(String requestId, long nanos) {
+        cancelTimer.record(nanos, TimeUnit.NANOSECONDS);
+        System.out.println("Request " + requestId + " cancelled " + TimeUnit.NANOSECONDS.toMillis(nanos)
+                + " ms after the cancel");
+    }
+
+    /**
+     * Move missions along once their drones report back from a leg. A pickup
+     * starts the delivery, a delivery closes the request and starts the next
+     * one planned for the drone, if its battery still covers it.
+     */
+    private void processArrivals() {
+        String droneId;
+        // Arrivals wait in the queue while the leases are not valid
+        while (shards.leasesValid() && (droneId = arrivals.poll()) != null) {
+            MissionPlanner.Mission mission = planner.get(droneId);
+            FleetStore.DroneState drone = fleet.get(droneId);
+            if (mission == null || drone == null || !mission.takeArrival()) {
+                continue;
+            }
+            AssignmentStrategy.PendingRequest request = mission.getRequest();
+            if (!mission.isAt(drone.getLat(), drone.getLon())) {
+                System.out.println("Drone " + droneId + " stopped short of its target, sending it again");
+                flyLeg(droneId);
+                continue;
+            }
+            if (mission.getLeg() == MissionPlanner.Leg.PICKUP) {
+                if (!pickedUp(droneId, request.requestId)) {
+                    // No longer ours to fly, e.g. cancelled meanwhile
+                    endMission(droneId, request.requestId);
+                    continue;
+                }
+                planner.setLeg(droneId, MissionPlanner.Leg.DELIVERY);
+                publishStatusChange(request.requestId);
+                flyLeg(droneId);
+                continue;
+            }
+            AssignmentStrategy.PendingRequest[] next = new AssignmentStrategy.PendingRequest[1];
+            if (!delivered(droneId, request.requestId, next)) {
+                endMission(droneId, request.requestId);
+                continue;
+            }
+            deliveries.increment();
+            publishStatusChange(request.requestId);
+            if (next[0] == null) {
+                endMission(droneId, request.requestId);
+                continue;
+            }
+            planner.advance(droneId);
+            fleet.assign(droneId, next[0].requestId);
+            publishStatusChange(next[0].requestId);
+            flyLeg(droneId);
+        }
+    }
+
+    private boolean pickedUp(String droneId, String requestId) {
+        try {
+            return database.write(session -> {
+                PreparedStatement updateStmt = session.prepare(
+                        "UPDATE requests SET curr_status = ? WHERE request_id = ? AND drone_id = ? AND curr_status = ?");
+                updateStmt.setInt(1, RequestStatus.ON_ROUTE.code);
+                updateStmt.setString(2, requestId);
+                updateStmt.setString(3, droneId);
+                updateStmt.setInt(4, RequestStatus.ASSIGNED.code);
+                if (updateStmt.executeUpdate() == 0) {
+                    return false;
+                }
+                syncJournal(journal.appendRequestStatus(requestId, RequestStatus.ASSIGNED, RequestStatus.ON_ROUTE,
+                        droneId));
+                return true;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
-                String droneId = getClosestDrone(availableDrones, rs.getString("origin_latlong"));
-                String requestId = rs.getString("request_id");
-                String originLatLong = rs.getString("origin_latlong");
-                int weight = rs.getInt("weight");
-
-                String message = "{"
-                        + "\"request_id\":\"" + requestId + "\","
-                        + "\"dest_latlong\":\"" + originLatLong + "\","
-                        + "\"weight\":" + weight
-                        + "}";
-
-                System.out.println("Assigning drone " + droneId + " to request " + requestId);
-                mqttClient.publish("command/" + droneId, new MqttMessage(message.getBytes()));
-                PreparedStatement updateStmt = dbConnection.prepareStatement(
-                        "UPDATE requests SET drone_id = ?, curr_status = 'assigned', weight = ? WHERE request_id = ?");
-                updateStmt.setString(1, droneId);
-                updateStmt.setString(2, rs.getString("weight"));
-                updateStmt.setString(3, requestId);
-                updateStmt.executeUpdate();
-                updateStmt.close();
-                System.out.println("Updated request status to \"assigned\" for request " + requestId);
-            }
-            stmt.close();
-        } catch (SQLException | MqttException e) {
+    /**
+     * Close a delivered request and, in the same transaction, assign the
+     * drone the next request of its mission. next[0] is left null if there
+     * is none or it was taken meanwhile.
+     */
+    private boolean delivered(String droneId, String requestId, AssignmentStrategy.PendingRequest[] next) {
+        try {
+            return database.write(session -> {
+                PreparedStatement doneStmt = session.prepare(
+                        "UPDATE requests SET curr_status = ? WHERE request_id = ? AND drone_id = ? AND curr_status = ?");
+                doneStmt.setInt(1, RequestStatus.DONE.code);
+                doneStmt.setString(2, requestId);
+                doneStmt.setString(3, droneId);
+                doneStmt.setInt(4, RequestStatus.ON_ROUTE.code);
+                if (doneStmt.executeUpdate() == 0) {
+                    return false;
+                }
+                long seq = journal.appendRequestStatus(requestId, RequestStatus.ON_ROUTE, RequestStatus.DONE, droneId);
+                AssignmentStrategy.PendingRequest candidate = planner.next(droneId);
+                if (candidate != null) {
+                    // Fenced like the assignments of a pass
+                    PreparedStatement assignStmt = session.prepare(
+                            "UPDATE requests SET drone_id = ?, curr_status = ? WHERE request_id = ? AND curr_status = ? "
+                                    + "AND EXISTS (SELECT 1 FROM shard_leases WHERE shard = ? AND owner = ? AND expires_at > ?)");
+                    assignStmt.setString(1, droneId);
+                    assignStmt.setInt(2, RequestStatus.ASSIGNED.code);
+                    assignStmt.setString(3, candidate.requestId);
+                    assignStmt.setInt(4, RequestStatus.PENDING.code);
+                    assignStmt.setInt(5, ShardCoordinator.partitionOf(droneId));
+                    assignStmt.setString(6, clientId);
+                    assignStmt.setLong(7, System.currentTimeMillis());
+                    if (assignStmt.executeUpdate() > 0) {
+                        seq = journal.appendRequestStatus(candidate.requestId, RequestStatus.PENDING,
+                                RequestStatus.ASSIGNED, droneId);
+                        next[0] = candidate;
+                    }
+                }
+                syncJournal(seq);
+                return true;
+            });
+        } catch (SQLException e) {
             e.printStackTrace();
+            return false;
         }
     }
 
-    private List<Map<String, String>> getAvailableDrones(Connection connection) {
-        List<Map<String, String>> availableDrones = new ArrayList<>();
+    /**
+     * Send the drone on the current leg of its mission. A drone already at
+     * the target is not sent anywhere, the leg counts as flown.
+     */
+    private void flyLeg(String droneId) {
+        MissionPlanner.Mission mission = planner.get(droneId);
+        FleetStore.DroneState drone = fleet.get(droneId);
+        if (mission == null || drone == null) {
+            return;
+        }
+        if (mission.isAt(drone.getLat(), drone.getLon())) {
+            if (mission.arrive(drone.getLat(), drone.getLon())) {
+                arrivals.add(droneId);
+                dispatcher.signal(Dispatcher.Event.ARRIVED);
+            }
+            return;
+        }
+        AssignmentStrategy.PendingRequest request = mission.getRequest();
+        TelemetryCodec.Command command = new TelemetryCodec.Command();
+        command.setRequestId(request.requestId);
+        command.lat = mission.targetLat();
+        command.lon = mission.targetLon();
+        // Empty on the way to the pickup
+        command.weight = mission.getLeg() == MissionPlanner.Leg.DELIVERY ? request.weight : 0;
+        byte[] payload;
+        if (drone.isBinary()) {
+            payload = new byte[TelemetryCodec.COMMAND_SIZE];
+            TelemetryCodec.encodeCommand(command, payload);
+        } else {
+            payload = TelemetryCodec.commandToJson(command);
+        }
+        // Returns right away, delivery is confirmed or retried in the background
+        commands.send(request.requestId, droneId, payload);
+    }
+
+    /**
+     * The mission of the drone is over, it goes back to the idle pool.
+     */
+    private void endMission(String droneId, String requestId) {
+        planner.release(droneId);
+        fleet.unassign(droneId, requestId);
+        dispatcher.signal(Dispatcher.Event.DRONE_IDLE);
+    }
+
+    /**
+     * Let the Api know a request changed state so it drops its cached status.
+     */
+    private void publishStatusChange(String requestId) {
         try {
-            Statement stmt = connection.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT drone_id, curr_latlong FROM drones WHERE curr_status = 'idle'");
-            while (rs.next()) {
-                availableDrones.add(Map.of(rs.getString("drone_id"), rs.getString("curr_latlong")));
+            mqttClient.publish(EventPublisher.STATUS_TOPIC, requestId.getBytes(), 0, false);
+        } catch (MqttException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A command never reached the broker: put the request back to pending and
+     * free the drone so the next pass can assign it again.
+     */
+    private void revertAssignment(String requestId, String droneId) {
+        MissionPlanner.Mission mission = planner.get(droneId);
+        if (mission != null && requestId.equals(mission.getRequest().requestId)) {
+            if (mission.getLeg() == MissionPlanner.Leg.DELIVERY) {
+                // The parcel is on board and the drone cannot be reached
+                reportLost(droneId);
+                return;
             }
-            stmt.close();
+            planner.release(droneId);
+        }
+        if (!leasesValid()) {
+            return;
+        }
+        int reverted;
+        try {
+            reverted = database.write(session -> {
+                PreparedStatement updateStmt = session.prepare(
+                        "UPDATE requests SET drone_id = NULL, curr_status = ? WHERE request_id = ? AND drone_id = ? AND curr_status = ?");
+                updateStmt.setInt(1, RequestStatus.PENDING.code);
+                updateStmt.setString(2, requestId);
+                updateStmt.setString(3, droneId);
+                updateStmt.setInt(4, RequestStatus.ASSIGNED.code);
+                int count = updateStmt.executeUpdate();
+                if (count > 0) {
+                    syncJournal(journal.appendRequestStatus(requestId, RequestStatus.ASSIGNED, RequestStatus.PENDING,
+                            null));
+                }
+                return count;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+            return;
+        }
+        fleet.unassign(droneId, requestId);
+        if (reverted > 0) {
+            System.out.println("Request " + requestId + " back to pending, command to " + droneId + " failed");
+            publishStatusChange(requestId);
+            dispatcher.signal(Dispatcher.Event.NEW_REQUEST);
         }
-        return availableDrones;
     }
 
-    private String getClosestDrone(List<Map<String, String>> availableDrones, String destLatLong) {
-        // Return the closest drone to destination
-        // TODO: It should also consider battery levels to ensure it will reach!
-        double minDistance = Double.MAX_VALUE;
-        // Set the first drone as chosen one
-        String droneId = availableDrones.get(0).get(0);
-        double destLat = Double.parseDouble(destLatLong.split(",")[0]);
-        double destLong = Double.parseDouble(destLatLong.split(",")[1]);
+    private void droneTimedOut(String droneId) {
+        System.out.println("Warning: No status from drone " + droneId + " in time, marking it offline");
+        reportLost(droneId);
+    }
 
-        for (Map<String, String> drone : availableDrones) {
-            String dest = drone.get(1);
-            Double currLat = Double.parseDouble(dest.split(",")[0]);
-            Double currLong = Double.parseDouble(dest.split(",")[1]);
-            Double distance = calcDistance(currLat, currLong, destLat, destLong);
-            if (distance < minDistance) {
-                minDistance = distance;
-                droneId = drone.get(0);
+    /**
+     * Hand a dead drone to the dispatcher thread, from the heartbeat wheel,
+     * the MQTT callback or the command pipeline.
+     */
+    private void reportLost(String droneId) {
+        lostDrones.add(droneId);
+        dispatcher.signal(Dispatcher.Event.DRONE_LOST);
+    }
+
+    /**
+     * Take a dead drone out of the pool and put its request, if any, back to
+     * pending so another drone picks it up. A request being cancelled is
+     * closed instead. Dispatcher thread only, see reportLost().
+     */
+    private void droneLost(String droneId) {
+        FleetStore.DroneState drone = fleet.get(droneId);
+        if (drone == null) {
+            return;
+        }
+        planner.release(droneId);
+        fleet.markOffline(droneId);
+        lostStatus.status = DroneStatus.OFFLINE;
+        lostStatus.lat = drone.getLat();
+        lostStatus.lon = drone.getLon();
+        lostStatus.battery = drone.getBattery();
+        journal.appendDroneStatus(droneId, lostStatus);
+        if (!leasesValid()) {
+            // The next owner re-queues its requests
+            return;
+        }
+        List<String> requeued = new ArrayList<>();
+        List<RequestStatus> previous = new ArrayList<>();
+        try {
+            database.write(session -> {
+                PreparedStatement selectStmt = session.prepare(
+                        "SELECT request_id, curr_status FROM requests WHERE drone_id = ? AND curr_status IN (?, ?, ?)");
+                selectStmt.setString(1, droneId);
+                selectStmt.setInt(2, RequestStatus.ASSIGNED.code);
+                selectStmt.setInt(3, RequestStatus.ON_ROUTE.code);
+                selectStmt.setInt(4, RequestStatus.CANCELLING.code);
+                try (ResultSet rs = selectStmt.executeQuery()) {
+                    while (rs.next()) {
+                        requeued.add(rs.getString("request_id"));
+                        previous.add(RequestStatus.fromCode(rs.getInt("curr_status")));
+                    }
+                }
+                PreparedStatement requeueStmt = session.prepare(
+                        "UPDATE requests SET drone_id = NULL, curr_status = CASE WHEN curr_status = ? THEN ? ELSE ? END WHERE drone_id = ? AND curr_status IN (?, ?, ?)");
+                requeueStmt.setInt(1, RequestStatus.CANCELLING.code);
+                requeueStmt.setInt(2, RequestStatus.CANCELLED.code);
+                requeueStmt.setInt(3, RequestStatus.PENDING.code);
+                requeueStmt.setString(4, droneId);
+                requeueStmt.setInt(5, RequestStatus.ASSIGNED.code);
+                requeueStmt.setInt(6, RequestStatus.ON_ROUTE.code);
+                requeueStmt.setInt(7, RequestStatus.CANCELLING.code);
+                int count = requeueStmt.executeUpdate();
+                long seq = 0;
+                for (int i = 0; i < requeued.size(); i++) {
+                    RequestStatus from = previous.get(i);
+                    RequestStatus to = from == RequestStatus.CANCELLING ? RequestStatus.CANCELLED : RequestStatus.PENDING;
+                    seq = journal.appendRequestStatus(requeued.get(i), from, to, null);
+                }
+                syncJournal(seq);
+                return count;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return;
+        }
+        for (String requestId : requeued) {
+            commands.cancel(requestId);
+            cancelsSent.remove(requestId);
+            cancelStarted.remove(requestId);
+            publishStatusChange(requestId);
+        }
+        if (!requeued.isEmpty()) {
+            System.out.println("Drone " + droneId + " is offline, re-queued " + requeued.size() + " requests");
+            dispatcher.signal(Dispatcher.Event.NEW_REQUEST);
+        }
+    }
+
+    void processIncomingMessage(String topic, byte[] payload) {
+        // This method handles messages coming from the drones through the
+        // /status/<drone_id> queues
+
+        // Decode the incoming message, binary frames or JSON from older drones.
+        // MQTT callbacks run on a single thread so the holder is reused
+        boolean binary = TelemetryCodec.isBinary(payload);
+        try {
+            if (binary) {
+                TelemetryCodec.decodeStatus(payload, incomingStatus);
+            } else {
+                TelemetryCodec.statusFromJson(payload, incomingStatus);
             }
+        } catch (RuntimeException e) {
+            // A bad payload must not escape the callback, it would drop the connection
+            System.out.println("Warning: Discarding malformed status on " + topic + ": " + e.getMessage());
+            return;
+        }
+
+        // Extract the drone_id from the topic
+        String droneId = topic.substring("status/".length());
+
+        // Update the in-memory fleet, the flusher persists it to the drones table
+        FleetStore.DroneState drone = fleet.get(droneId);
+        if (drone == null) {
+            // Handle the case where the drone_id from the incoming message does not exist
+            // in the drones table
+            System.out.println("Warning: Received status for unknown drone ID: " + droneId);
+            return;
+        }
+        DroneStatus status = incomingStatus.status;
+        if (status == DroneStatus.OFFLINE) {
+            // Last will, the broker lost the drone's connection. The position
+            // in the will is the one at connect time, droneLost() journals
+            // the status change with the last known position
+            liveness.remove(droneId);
+            reportLost(droneId);
+            return;
         }
-        return droneId;
+        liveness.touch(droneId);
+
+        // A drone on a mission reports idle between legs. It stays out of the
+        // idle pool until the mission is over, unless it is being cancelled
+        MissionPlanner.Mission mission = planner.get(droneId);
+        if (mission != null && !cancelsSent.contains(mission.getRequest().requestId)) {
+            if (status == DroneStatus.ON_ROUTE && mission.isFor(incomingStatus)) {
+                mission.markDeparted();
+            } else if (status == DroneStatus.IDLE) {
+                if (mission.arrive(incomingStatus.lat, incomingStatus.lon)) {
+                    arrivals.add(droneId);
+                    dispatcher.signal(Dispatcher.Event.ARRIVED);
+                }
+                status = DroneStatus.ASSIGNED;
+            }
+        }
+        boolean wasIdle = drone.getStatus() == DroneStatus.IDLE;
+        String previousRequestId = drone.getRequestId();
+        fleet.update(droneId, incomingStatus.lat, incomingStatus.lon, incomingStatus.battery, status, binary);
+        // Journaled after the fleet has it, see checkpoint()
+        journal.appendDroneStatus(droneId, incomingStatus);
+
+        // If a drone became idle, there may be a pending request that can be assigned to it
+        if (!wasIdle && status == DroneStatus.IDLE) {
+            if (previousRequestId != null && cancelsSent.contains(previousRequestId)) {
+                // The drone aborted a cancelled job, close the request now
+                dispatcher.signal(Dispatcher.Event.CANCELLING);
+            }
+            dispatcher.signal(Dispatcher.Event.DRONE_IDLE);
+        }
+    }
+
+    /**
+     * Calculate distance between two points in latitude and longitude.
+     * Haversine formula
+     */
+    public double calcDistance(double origLat, double origLong, double destLat, double destLong) {
+        return SpatialIndex.haversine(origLat, origLong, destLat, destLong);
     }
 
-    private List<String> getDroneIdsFromDB() {
-        List<String> droneIds = new ArrayList<>();
+    private void processPendingRequests() {
+        if (fleet.idleCount() == 0 && planner.missionCount() == 0) {
+            // Passes run on every event, only say it when it starts happening
+            if (!noDrones) {
+                System.out.println("No available drones in the system to process requests");
+                noDrones = true;
+            }
+            return;
+        }
+        noDrones = false;
+
+        List<AssignmentStrategy.PendingRequest> pending = new ArrayList<>();
+        List<AssignmentStrategy.Assignment> assignments;
+        int[] updated;
         try {
-            Statement stmt = dbConnection.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT drone_id FROM drones");
-            while (rs.next()) {
-                droneIds.add(rs.getString("drone_id"));
+            database.read(session -> {
+                PreparedStatement selectStmt = session.prepare(
+                        "SELECT request_id, origin_lat, origin_lon, dest_lat, dest_lon, weight FROM requests WHERE curr_status = ? ORDER BY ROWID ASC");
+                selectStmt.setInt(1, RequestStatus.PENDING.code);
+                try (ResultSet rs = selectStmt.executeQuery()) {
+                    while (rs.next()) {
+                        if (!shards.ownsKey(rs.getString("request_id"))) {
+                            // Another director's partition
+                            continue;
+                        }
+                        pending.add(new AssignmentStrategy.PendingRequest(rs.getString("request_id"),
+                                rs.getDouble("origin_lat"), rs.getDouble("origin_lon"),
+                                rs.getDouble("dest_lat"), rs.getDouble("dest_lon"),
+                                rs.getInt("weight")));
+                    }
+                }
+                return null;
+            });
+
+            pendingCount.set(pending.size());
+            // Chain what fits into the missions of busy drones and improve
+            // the routes in the background. Idle drones get the rest
+            List<AssignmentStrategy.PendingRequest> unplanned = planner.plan(pending);
+            optimizeRoutes();
+            if (unplanned.isEmpty() || fleet.idleCount() == 0) {
+                return;
+            }
+            assignments = strategy.assign(unplanned, fleet);
+            if (assignments.isEmpty()) {
+                return;
             }
-            stmt.close();
+
+            // Commit every assignment in a single transaction. The lease check
+            // fences off a director that lost the drone's partition without
+            // noticing yet, e.g. after a long pause
+            if (!leasesValid()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            updated = database.write(session -> {
+                PreparedStatement updateStmt = session.prepare(
+                        "UPDATE requests SET drone_id = ?, curr_status = ? WHERE request_id = ? AND curr_status = ? "
+                                + "AND EXISTS (SELECT 1 FROM shard_leases WHERE shard = ? AND owner = ? AND expires_at > ?)");
+                List<Integer> batched = new ArrayList<>(assignments.size());
+                for (int i = 0; i < assignments.size(); i++) {
+                    AssignmentStrategy.Assignment assignment = assignments.get(i);
+                    // Skip drones that went offline or got busy since they were picked
+                    FleetStore.DroneState drone = fleet.get(assignment.droneId);
+                    if (drone == null || drone.getStatus() != DroneStatus.IDLE) {
+                        continue;
+                    }
+                    batched.add(i);
+                    updateStmt.setString(1, assignment.droneId);
+                    updateStmt.setInt(2, RequestStatus.ASSIGNED.code);
+                    updateStmt.setString(3, assignment.request.requestId);
+                    updateStmt.setInt(4, RequestStatus.PENDING.code);
+                    updateStmt.setInt(5, ShardCoordinator.partitionOf(assignment.droneId));
+                    updateStmt.setString(6, clientId);
+                    updateStmt.setLong(7, now);
+                    updateStmt.addBatch();
+                }
+                int[] counts = new int[assignments.size()];
+                if (!batched.isEmpty()) {
+                    int[] batchCounts = updateStmt.executeBatch();
+                    for (int i = 0; i < batchCounts.length; i++) {
+                        counts[batched.get(i)] = batchCounts[i];
+                    }
+                }
+                long seq = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        AssignmentStrategy.Assignment assignment = assignments.get(i);
+                        seq = journal.appendRequestStatus(assignment.request.requestId, RequestStatus.PENDING,
+                                RequestStatus.ASSIGNED, assignment.droneId);
+                    }
+                }
+                // One fsync for the whole pass, before the transaction commits
+                syncJournal(seq);
+                return counts;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+            return;
         }
-        return droneIds;
+
+        // Then send every drone on its pickup leg in one burst, skipping
+        // requests that were cancelled while the pass was running
+        for (int i = 0; i < assignments.size(); i++) {
+            if (updated[i] == 0) {
+                continue;
+            }
+            AssignmentStrategy.Assignment assignment = assignments.get(i);
+            fleet.assign(assignment.droneId, assignment.request.requestId);
+            planner.start(assignment.droneId, assignment.request, MissionPlanner.Leg.PICKUP);
+            flyLeg(assignment.droneId);
+            publishStatusChange(assignment.request.requestId);
+        }
+        System.out.println("Assigned " + assignments.size() + " of " + pending.size() + " pending requests, "
+                + planner.plannedCount() + " planned on busy drones");
     }
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: Director <brokerUrl> <clientId>");
+            System.out.println("Usage: Director <brokerUrl> <clientId> [flushIntervalMs] [greedy|batch] [sweepIntervalMs]");
             System.exit(1);
         }
 
         String brokerUrl = args[0];
         String clientId = args[1];
+        long flushIntervalMs = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        AssignmentStrategy strategy = AssignmentStrategy.byName(args.length > 3 ? args[3] : "batch");
 
         try {
             System.out.println("Starting director backend " + clientId);
-            Director director = new Director(brokerUrl, clientId);
+            Director director = new Director(brokerUrl, clientId, flushIntervalMs, strategy);
+            if (args.length > 4) {
+                director.sweepIntervalMs = Long.parseLong(args[4]);
+            }
             director.run();
         } catch (Exception e) {
             e.printStackTrace();
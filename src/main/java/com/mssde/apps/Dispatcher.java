@@ -0,0 +1,94 @@
+package com.mssde.apps;
+
+import java.util.EnumSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs assignment passes as soon as something relevant happens instead of on
+ * a fixed timer. Signalled events are kept as a set of pending event types,
+ * so a burst of the same event costs nothing and no event type is ever lost.
+ * Every event pending when the dispatcher wakes up is coalesced into a single
+ * pass.
+ */
+public class Dispatcher {
+
+    public enum Event {
+        NEW_REQUEST,
+        DRONE_IDLE,
+        CANCELLING,
+        SWEEP,
+        REBALANCE,
+        ARRIVED,
+        DRONE_LOST
+    }
+
+    private static final Event[] EVENTS = Event.values();
+
+    // One bit per event type waiting for the next pass
+    private final AtomicInteger pending = new AtomicInteger();
+    // Released once each time the set goes from empty to non-empty
+    private final Semaphore wakeup = new Semaphore(0);
+    private final Consumer<EnumSet<Event>> pass;
+    private Thread thread;
+
+    public Dispatcher(Consumer<EnumSet<Event>> pass) {
+        this.pass = pass;
+    }
+
+    /**
+     * Never blocks the caller. An event type already pending is merged into
+     * the pass that will handle it.
+     */
+    public void signal(Event event) {
+        int bit = 1 << event.ordinal();
+        int previous = pending.getAndUpdate(bits -> bits | bit);
+        if (previous == 0) {
+            wakeup.release();
+        }
+    }
+
+    /**
+     * Number of event types waiting for the next pass.
+     */
+    public int pendingEvents() {
+        return Integer.bitCount(pending.get());
+    }
+
+    public void start() {
+        thread = new Thread(this::loop, "dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void loop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                wakeup.acquire();
+                int bits = pending.getAndSet(0);
+                if (bits == 0) {
+                    continue;
+                }
+                EnumSet<Event> events = EnumSet.noneOf(Event.class);
+                for (Event event : EVENTS) {
+                    if ((bits & (1 << event.ordinal())) != 0) {
+                        events.add(event);
+                    }
+                }
+                pass.accept(events);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                // Keep dispatching, the next event or sweep retries the pass
+                e.printStackTrace();
+            }
+        }
+    }
+}
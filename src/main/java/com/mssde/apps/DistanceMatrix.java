@@ -0,0 +1,92 @@
+package com.mssde.apps;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Distances between the requests being planned, from the destination of one
+ * to the origin of the other: the empty flight a drone makes between two
+ * consecutive jobs.
+ *
+ * Each request gets a slot when it is added and only its row and column are
+ * computed then, so the matrix is kept up to date incrementally as requests
+ * come and go instead of being rebuilt on every pass. Slots of removed
+ * requests are reused. Distances are floats in meters.
+ */
+public class DistanceMatrix {
+
+    private final int capacity;
+    private final float[] distances;
+    private final double[] originLat;
+    private final double[] originLon;
+    private final double[] destLat;
+    private final double[] destLon;
+    private final boolean[] used;
+    private final int[] free;
+    private int freeCount;
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    public DistanceMatrix(int capacity) {
+        this.capacity = capacity;
+        this.distances = new float[capacity * capacity];
+        this.originLat = new double[capacity];
+        this.originLon = new double[capacity];
+        this.destLat = new double[capacity];
+        this.destLon = new double[capacity];
+        this.used = new boolean[capacity];
+        this.free = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[freeCount++] = capacity - 1 - i;
+        }
+    }
+
+    /**
+     * Slot of the request, adding it if needed. Returns -1 if the matrix is full.
+     */
+    public int add(AssignmentStrategy.PendingRequest request) {
+        Integer existing = slots.get(request.requestId);
+        if (existing != null) {
+            return existing;
+        }
+        if (freeCount == 0) {
+            return -1;
+        }
+        int slot = free[--freeCount];
+        used[slot] = true;
+        originLat[slot] = request.originLat;
+        originLon[slot] = request.originLon;
+        destLat[slot] = request.destLat;
+        destLon[slot] = request.destLon;
+        for (int other = 0; other < capacity; other++) {
+            if (!used[other]) {
+                continue;
+            }
+            distances[slot * capacity + other] = (float) SpatialIndex.haversine(destLat[slot], destLon[slot],
+                    originLat[other], originLon[other]);
+            distances[other * capacity + slot] = (float) SpatialIndex.haversine(destLat[other], destLon[other],
+                    originLat[slot], originLon[slot]);
+        }
+        slots.put(request.requestId, slot);
+        return slot;
+    }
+
+    public void remove(String requestId) {
+        Integer slot = slots.remove(requestId);
+        if (slot != null) {
+            used[slot] = false;
+            free[freeCount++] = slot;
+        }
+    }
+
+    /**
+     * Empty flight from the destination of the first request to the origin of
+     * the second.
+     */
+    public float get(int from, int to) {
+        return distances[from * capacity + to];
+    }
+
+    public int size() {
+        return slots.size();
+    }
+}
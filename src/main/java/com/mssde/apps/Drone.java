@@ -1,57 +1,165 @@
 package com.mssde.apps;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
-import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
 
 public class Drone {
+    private static final double SPEED_MPS = 15; // ~54 km/h, as in FleetSimulator
+    private static final double CHARGE_PER_SECOND = 0.5; // battery percentage
+
     private final String brokerUrl;
     private final String clientId;
     private final String droneId;
-    private String status = "idle";
-    private String request_id = null;
-    private String latlong = "0,0";
+    // Status, position, battery and current request as reported to the director
+    private final TelemetryCodec.Status state = new TelemetryCodec.Status();
+    private final TelemetryCodec.Command command = new TelemetryCodec.Command();
+    private final byte[] frame = new byte[TelemetryCodec.STATUS_SIZE];
+    // Target and load of the current leg
+    private double destLat;
+    private double destLon;
+    private int weight;
+    private double battery = 100;
+    private long lastTickNanos = System.nanoTime();
+    private boolean binary = true;
     private int freq = 60000; // 60 seconds default
+    private final PrometheusMeterRegistry registry = Metrics.newRegistry();
+    private final Timer publishTimer = Metrics.latency(registry, "drone.status.publish",
+            "Status publish until handed to the network");
+    private final Counter commandsReceived = Counter.builder("drone.commands.received").register(registry);
 
     public Drone(String brokerUrl, String clientId, String droneId, int statusFreq) {
         this.brokerUrl = brokerUrl;
         this.clientId = clientId;
         this.droneId = droneId;
         this.freq = statusFreq;
+        this.state.status = DroneStatus.IDLE;
+        this.state.battery = 100;
+    }
+
+    /**
+     * Send status as JSON instead of binary frames, for directors that do not
+     * understand the binary format yet.
+     */
+    public void setJson(boolean json) {
+        this.binary = !json;
+    }
+
+    /**
+     * Encode the current state. Caller holds the state lock.
+     */
+    private byte[] encodeStatus() {
+        if (binary) {
+            TelemetryCodec.encodeStatus(state, frame);
+            return frame;
+        }
+        return TelemetryCodec.statusToJson(droneId, state);
+    }
+
+    /**
+     * Fly towards the target of the current leg since the last call, draining
+     * battery as BatteryModel does, and report idle once there so the
+     * director sends the next leg. Recharges while idle. Caller holds the
+     * state lock.
+     */
+    private void advance() {
+        long now = System.nanoTime();
+        double seconds = (now - lastTickNanos) / 1e9;
+        lastTickNanos = now;
+
+        if (state.status == DroneStatus.ON_ROUTE) {
+            double remaining = SpatialIndex.haversine(state.lat, state.lon, destLat, destLon);
+            double step = Math.min(remaining, SPEED_MPS * seconds);
+            if (remaining > 0) {
+                double fraction = step / remaining;
+                state.lat += (destLat - state.lat) * fraction;
+                state.lon += (destLon - state.lon) * fraction;
+            }
+            battery -= step / 1000 * (BatteryModel.DRAIN_PER_KM + weight / 1000.0 * BatteryModel.DRAIN_PER_KM_KG);
+            if (step >= remaining) {
+                // Arrived, the leg is done
+                state.status = DroneStatus.IDLE;
+                state.requestMsb = 0;
+                state.requestLsb = 0;
+                weight = 0;
+            }
+        } else if (state.status == DroneStatus.IDLE) {
+            battery = Math.min(100, battery + CHARGE_PER_SECOND * seconds);
+        }
+        battery = Math.max(0, battery);
+        state.battery = (int) battery;
     }
 
     public void start() {
+        Metrics.serve(registry);
         try {
-            // TODO: Add last will support to mark the drone as offline
             MqttClient mqttClient = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
             MqttConnectOptions connOpts = new MqttConnectOptions();
             connOpts.setCleanSession(true);
+            // Last will: the broker reports the drone offline if the connection drops
+            TelemetryCodec.Status will = new TelemetryCodec.Status();
+            will.status = DroneStatus.OFFLINE;
+            will.lat = state.lat;
+            will.lon = state.lon;
+            byte[] willPayload;
+            if (binary) {
+                willPayload = new byte[TelemetryCodec.STATUS_SIZE];
+                TelemetryCodec.encodeStatus(will, willPayload);
+            } else {
+                willPayload = TelemetryCodec.statusToJson(droneId, will);
+            }
+            connOpts.setWill("status/" + droneId, willPayload, 1, false);
             mqttClient.connect(connOpts);
 
-            mqttClient.subscribe("commands/" + droneId, new IMqttMessageListener() {
+            mqttClient.subscribe("command/" + droneId, new IMqttMessageListener() {
                 @Override
                 public void messageArrived(String topic, MqttMessage message) throws Exception {
-                    JSONObject json = new JSONObject(new String(message.getPayload()));
-                    if (json.getString("drone_id").equals(droneId) && status.equals("idle")) {
-                        request_id = json.getString("request_id");
-                        status = "on route";
+                    byte[] payload = message.getPayload();
+                    commandsReceived.increment();
+                    synchronized (state) {
+                        byte kind = TelemetryCodec.readCommand(payload, command);
+                        if (kind == TelemetryCodec.KIND_CANCEL) {
+                            if (state.requestMsb == command.requestMsb && state.requestLsb == command.requestLsb
+                                    && state.status != DroneStatus.IDLE) {
+                                // Abort the job and tell the director right away
+                                // instead of on the next status
+                                System.out.println("Cancelling request " + command.requestId());
+                                advance();
+                                state.status = DroneStatus.IDLE;
+                                state.requestMsb = 0;
+                                state.requestLsb = 0;
+                                weight = 0;
+                                mqttClient.publish("status/" + droneId, encodeStatus(), 0, false);
+                            }
+                        } else if (state.status == DroneStatus.IDLE) {
+                            // Charge up to now, the flight starts here
+                            advance();
+                            state.requestMsb = command.requestMsb;
+                            state.requestLsb = command.requestLsb;
+                            state.status = DroneStatus.ON_ROUTE;
+                            destLat = command.lat;
+                            destLon = command.lon;
+                            weight = command.weight;
+                        }
                     }
                 }
             });
 
             while (true) {
-                JSONObject statusJson = new JSONObject();
-                statusJson.put("drone_id", droneId);
-                statusJson.put("status", status);
-                statusJson.put("latlong", latlong);
-                if (request_id != null) {
-                    statusJson.put("request_id", request_id);
+                synchronized (state) {
+                    advance();
+                    System.out.println("Sending status for " + droneId + " on position "
+                            + LatLong.format(state.lat, state.lon) + " and status " + state.status.label);
+                    // Synchronous publish, the frame is free to reuse once it returns
+                    long start = System.nanoTime();
+                    mqttClient.publish("status/" + droneId, encodeStatus(), 0, false);
+                    publishTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
                 }
 
-                System.out
-                        .println("Sending status for " + droneId + " on position " + latlong + " and status " + status);
-                mqttClient.publish("status/" + droneId, new MqttMessage(statusJson.toString().getBytes()));
-
                 Thread.sleep(this.freq); // Sending status every 1 minute. Adjust as needed.
             }
 
@@ -62,7 +170,8 @@ public class Drone {
 
     public static void main(String[] args) {
         if (args.length < 4) {
-            System.out.println("Please provide broker URL, client ID, drone ID and status frequency as arguments.");
+            System.out.println(
+                    "Please provide broker URL, client ID, drone ID and status frequency as arguments, and optionally \"json\".");
             return;
         }
 
@@ -72,6 +181,7 @@ public class Drone {
         int statusFreq = Integer.parseInt(args[3]);
 
         Drone drone = new Drone(brokerUrl, clientId, droneId, statusFreq);
+        drone.setJson(args.length > 4 && "json".equalsIgnoreCase(args[4]));
         drone.start();
     }
 }
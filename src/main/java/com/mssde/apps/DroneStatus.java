@@ -0,0 +1,41 @@
+package com.mssde.apps;
+
+/**
+ * Status reported by a drone. The code is what gets stored in the drones
+ * table, the label is what drones send over MQTT.
+ */
+public enum DroneStatus {
+    IDLE(0, "idle"),
+    ASSIGNED(1, "assigned"),
+    ON_ROUTE(2, "on route"),
+    OFFLINE(3, "offline");
+
+    private static final DroneStatus[] BY_CODE = new DroneStatus[values().length];
+
+    static {
+        for (DroneStatus status : values()) {
+            BY_CODE[status.code] = status;
+        }
+    }
+
+    public final int code;
+    public final String label;
+
+    DroneStatus(int code, String label) {
+        this.code = code;
+        this.label = label;
+    }
+
+    public static DroneStatus fromCode(int code) {
+        return BY_CODE[code];
+    }
+
+    public static DroneStatus fromLabel(String label) {
+        for (DroneStatus status : values()) {
+            if (status.label.equalsIgnoreCase(label)) {
+                return status;
+            }
+        }
+        throw new IllegalArgumentException("Unknown drone status: " + label);
+    }
+}
@@ -0,0 +1,406 @@
+package com.mssde.apps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of drone telemetry and request lifecycle events.
+ *
+ * Events go to memory-mapped segment files named after the sequence number of
+ * their first event. Every record is
+ *
+ * <pre>
+ * length (int), crc32c (int), seq (long), time (long), type (byte), payload
+ * drone status:   drone id (short length + UTF-8), status, battery, lat, lon, request id (16 bytes)
+ * request status: request id (16 bytes), from status, to status, drone id (short length + UTF-8)
+ * </pre>
+ *
+ * A zero length marks the end of a segment, and a bad checksum marks a torn
+ * write from a crash; reading stops at either. Appends only copy into the
+ * mapping. A background thread forces the written range to disk every
+ * syncIntervalMs, or sooner when someone waits in sync(), so concurrent
+ * writers share one fsync (group commit).
+ *
+ * The database tables are a materialized view of the journal: checkpoint()
+ * records the last event known to be in the database, and replay() returns
+ * what came after it. Segments older than the checkpoint are deleted, except
+ * for the most recent few, which are kept as history.
+ */
+public class EventJournal implements AutoCloseable {
+
+    public static final byte DRONE_STATUS = 1;
+    public static final byte REQUEST_STATUS = 2;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_BODY_SIZE = 1024;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    /**
+     * Decoded event. The same instance is reused for every event of a replay.
+     */
+    public static class Event {
+        public byte type;
+        public long seq;
+        public long time;
+        public String droneId;
+        public DroneStatus droneStatus;
+        public int battery;
+        public double lat;
+        public double lon;
+        public long requestMsb;
+        public long requestLsb;
+        public RequestStatus from;
+        public RequestStatus to;
+
+        public String requestId() {
+            return requestMsb == 0 && requestLsb == 0 ? null : new UUID(requestMsb, requestLsb).toString();
+        }
+
+        public Event copy() {
+            Event copy = new Event();
+            copyTo(copy);
+            return copy;
+        }
+
+        public void copyTo(Event other) {
+            other.type = type;
+            other.seq = seq;
+            other.time = time;
+            other.droneId = droneId;
+            other.droneStatus = droneStatus;
+            other.battery = battery;
+            other.lat = lat;
+            other.lon = lon;
+            other.requestMsb = requestMsb;
+            other.requestLsb = requestLsb;
+            other.from = from;
+            other.to = to;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int retainSegments;
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_BODY_SIZE);
+    private final CRC32C crc = new CRC32C();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long lastSeq;
+    private long durableSeq;
+    private int forcedPosition;
+    private boolean syncRequested;
+    private volatile boolean running = true;
+    private final Thread syncer;
+
+    public EventJournal(Path dir, int segmentSize, int retainSegments, long syncIntervalMs) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.retainSegments = retainSegments;
+        Files.createDirectories(dir);
+
+        List<Path> segments = segments();
+        if (segments.isEmpty()) {
+            lastSeq = readCheckpoint();
+            openSegment(lastSeq + 1);
+        } else {
+            // Continue after the last intact record of the newest segment
+            Path last = segments.get(segments.size() - 1);
+            channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            lastSeq = firstSeq(last) - 1;
+            Event event = new Event();
+            while (read(segment, event, new CRC32C())) {
+                lastSeq = event.seq;
+            }
+        }
+        durableSeq = lastSeq;
+        forcedPosition = segment.position();
+
+        syncer = new Thread(() -> syncLoop(syncIntervalMs), "journal-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> segments = new ArrayList<>();
+            files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().forEach(segments::add);
+            return segments;
+        }
+    }
+
+    private static long firstSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void openSegment(long firstSeq) throws IOException {
+        Path path = dir.resolve(String.format("%020d%s", firstSeq, SEGMENT_SUFFIX));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        forcedPosition = 0;
+    }
+
+    // Appending
+
+    public synchronized long appendDroneStatus(String droneId, TelemetryCodec.Status status) {
+        ByteBuffer body = begin(DRONE_STATUS);
+        putString(body, droneId);
+        body.put((byte) status.status.code);
+        body.put((byte) status.battery);
+        body.putDouble(status.lat);
+        body.putDouble(status.lon);
+        body.putLong(status.requestMsb);
+        body.putLong(status.requestLsb);
+        return commit(body);
+    }
+
+    public synchronized long appendRequestStatus(String requestId, RequestStatus from, RequestStatus to,
+            String droneId) {
+        UUID uuid = UUID.fromString(requestId);
+        ByteBuffer body = begin(REQUEST_STATUS);
+        body.putLong(uuid.getMostSignificantBits());
+        body.putLong(uuid.getLeastSignificantBits());
+        body.put((byte) from.code);
+        body.put((byte) to.code);
+        putString(body, droneId);
+        return commit(body);
+    }
+
+    private ByteBuffer begin(byte type) {
+        scratch.clear();
+        scratch.putLong(lastSeq + 1);
+        scratch.putLong(System.currentTimeMillis());
+        scratch.put(type);
+        return scratch;
+    }
+
+    private static void putString(ByteBuffer body, String value) {
+        if (value == null) {
+            body.putShort((short) 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        body.putShort((short) bytes.length);
+        body.put(bytes);
+    }
+
+    private long commit(ByteBuffer body) {
+        body.flip();
+        int length = body.remaining();
+        // Keep room for the zero length that ends the segment
+        if (segment.remaining() < HEADER_SIZE + length + 4) {
+            rotate();
+        }
+        crc.reset();
+        crc.update(body.array(), 0, length);
+        segment.putInt(length);
+        segment.putInt((int) crc.getValue());
+        segment.put(body);
+        return ++lastSeq;
+    }
+
+    private void rotate() {
+        try {
+            segment.force();
+            channel.close();
+            openSegment(lastSeq + 1);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open a new journal segment in " + dir, e);
+        }
+    }
+
+    // Group commit
+
+    /**
+     * Wait until every event up to seq is on disk.
+     */
+    public synchronized void sync(long seq) throws InterruptedException {
+        while (durableSeq < seq) {
+            syncRequested = true;
+            notifyAll();
+            wait();
+        }
+    }
+
+    private void syncLoop(long intervalMs) {
+        while (running) {
+            MappedByteBuffer target;
+            int from;
+            int to;
+            long seq;
+            synchronized (this) {
+                try {
+                    if (!syncRequested) {
+                        wait(intervalMs);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                syncRequested = false;
+                if (durableSeq == lastSeq) {
+                    continue;
+                }
+                target = segment;
+                from = forcedPosition;
+                to = segment.position();
+                seq = lastSeq;
+            }
+            // Outside the lock so appends keep going while the disk works
+            target.force(from, to - from);
+            synchronized (this) {
+                if (target == segment) {
+                    forcedPosition = Math.max(forcedPosition, to);
+                }
+                durableSeq = Math.max(durableSeq, seq);
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    // Reading
+
+    /**
+     * Read the record at the buffer's position into the event. Returns false
+     * at the end of the segment or at a torn record, leaving the position on it.
+     */
+    private static boolean read(ByteBuffer buffer, Event event, CRC32C crc) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length <= 0 || length > MAX_BODY_SIZE || length > buffer.remaining()) {
+            buffer.position(start);
+            return false;
+        }
+        crc.reset();
+        ByteBuffer body = buffer.slice(buffer.position(), length);
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+            buffer.position(start);
+            return false;
+        }
+        event.seq = buffer.getLong();
+        event.time = buffer.getLong();
+        event.type = buffer.get();
+        if (event.type == DRONE_STATUS) {
+            event.droneId = getString(buffer);
+            event.droneStatus = DroneStatus.fromCode(buffer.get());
+            event.battery = buffer.get();
+            event.lat = buffer.getDouble();
+            event.lon = buffer.getDouble();
+            event.requestMsb = buffer.getLong();
+            event.requestLsb = buffer.getLong();
+        } else {
+            event.requestMsb = buffer.getLong();
+            event.requestLsb = buffer.getLong();
+            event.from = RequestStatus.fromCode(buffer.get());
+            event.to = RequestStatus.fromCode(buffer.get());
+            event.droneId = getString(buffer);
+        }
+        return true;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Call the consumer with every event after the given sequence number, in
+     * order. Returns the number of events replayed.
+     */
+    public long replay(long afterSeq, Consumer<Event> consumer) throws IOException {
+        List<Path> segments = segments();
+        Event event = new Event();
+        CRC32C checksum = new CRC32C();
+        long count = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            // Skip whole segments that end before the starting point
+            if (i + 1 < segments.size() && firstSeq(segments.get(i + 1)) <= afterSeq + 1) {
+                continue;
+            }
+            try (FileChannel in = FileChannel.open(segments.get(i), StandardOpenOption.READ)) {
+                ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                while (read(buffer, event, checksum)) {
+                    if (event.seq > afterSeq) {
+                        consumer.accept(event);
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // Checkpoints
+
+    public long readCheckpoint() throws IOException {
+        Path path = dir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        return Long.parseLong(Files.readString(path).trim());
+    }
+
+    /**
+     * Record that the database reflects every event up to seq and drop the
+     * segments that are no longer needed for recovery or history.
+     */
+    public void checkpoint(long seq) throws IOException {
+        Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.writeString(tmp, Long.toString(seq));
+        Files.move(tmp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        List<Path> segments = segments();
+        // A segment is fully covered once the next one starts at or before seq + 1
+        int covered = 0;
+        while (covered + 1 < segments.size() && firstSeq(segments.get(covered + 1)) <= seq + 1) {
+            covered++;
+        }
+        for (int i = 0; i < covered - retainSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        syncer.interrupt();
+        synchronized (this) {
+            segment.force();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.mssde.apps;
+
+import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Lets the Api notify the Director about request changes over MQTT so it can
+ * dispatch right away, and hear back about status changes made by the
+ * Director. Everything is best effort: without a broker the Director still
+ * finds the changes on its periodic sweep and cached statuses expire. The
+ * first connection is retried in the background with a growing delay, the
+ * client reconnects on its own after that.
+ */
+public class EventPublisher {
+
+    public static final String NEW_REQUEST_TOPIC = "events/request";
+    public static final String CANCEL_TOPIC = "events/cancel";
+    public static final String STATUS_TOPIC = "events/status";
+
+    private static final long FIRST_RETRY_MS = 1000;
+    private static final long MAX_RETRY_MS = 60000;
+
+    private MqttClient mqttClient;
+    private final Map<String, IMqttMessageListener> subscriptions = new ConcurrentHashMap<>();
+    private MqttConnectOptions connOpts;
+    private ScheduledExecutorService connector;
+    // Events dropped since the connection was last up, logged once per outage
+    private final AtomicLong dropped = new AtomicLong();
+
+    public EventPublisher(String brokerUrl, String clientId) {
+        if (brokerUrl == null || brokerUrl.isEmpty()) {
+            System.out.println("No broker configured, request events will not be published");
+            return;
+        }
+        try {
+            connOpts = new MqttConnectOptions();
+            connOpts.setCleanSession(true);
+            connOpts.setAutomaticReconnect(true);
+            mqttClient = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
+            mqttClient.setCallback(new MqttCallbackExtended() {
+                @Override
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    // Clean sessions lose their subscriptions on reconnect, and
+                    // listeners may have been added before the first connect
+                    subscriptions.forEach(EventPublisher.this::subscribeNow);
+                    long count = dropped.getAndSet(0);
+                    if (count > 0) {
+                        System.out.println("Event connection back, " + count + " request events were dropped");
+                    }
+                }
+
+                @Override
+                public void connectionLost(Throwable throwable) {
+                    System.out.println("Event connection lost!");
+                }
+
+                @Override
+                public void messageArrived(String topic, MqttMessage message) {
+                }
+
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                }
+            });
+        } catch (MqttException e) {
+            e.printStackTrace();
+            mqttClient = null;
+            return;
+        }
+        // Automatic reconnect only starts after a first successful connect
+        connector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "event-connect");
+            t.setDaemon(true);
+            return t;
+        });
+        connector.execute(() -> connect(FIRST_RETRY_MS));
+    }
+
+    private void connect(long retryMs) {
+        try {
+            mqttClient.connect(connOpts);
+            connector.shutdown();
+        } catch (MqttException e) {
+            System.out.println("Warning: Could not connect to the broker (" + e.getMessage() + "), retrying in "
+                    + retryMs / 1000 + " s");
+            connector.schedule(() -> connect(Math.min(retryMs * 2, MAX_RETRY_MS)), retryMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void publish(String topic, String requestId) {
+        if (mqttClient == null) {
+            return;
+        }
+        if (!mqttClient.isConnected()) {
+            if (dropped.getAndIncrement() == 0) {
+                System.out.println("Warning: Not connected to the broker, dropping request events until it is back");
+            }
+            return;
+        }
+        try {
+            mqttClient.publish(topic, requestId.getBytes(), 0, false);
+        } catch (MqttException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Call the listener with the payload of every message on the topic.
+     */
+    public void subscribe(String topic, Consumer<String> listener) {
+        subscribe(topic, (t, message) -> listener.accept(new String(message.getPayload())));
+    }
+
+    /**
+     * Raw variant, for topic filters with wildcards or binary payloads.
+     */
+    public void subscribe(String topic, IMqttMessageListener listener) {
+        subscriptions.put(topic, listener);
+        subscribeNow(topic, listener);
+    }
+
+    private void subscribeNow(String topic, IMqttMessageListener listener) {
+        if (mqttClient == null || !mqttClient.isConnected()) {
+            return;
+        }
+        try {
+            mqttClient.subscribe(topic, listener);
+        } catch (MqttException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.mssde.apps;
+
+import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Math.*;
+
+/**
+ * Runs many simulated drones in one JVM to load test the Director and Api.
+ *
+ * Drones are ticked by a shared scheduler instead of owning a thread each,
+ * and share a configurable number of MQTT connections. Each drone flies
+ * towards the location of its current command, drains battery according to
+ * BatteryModel, reports idle once it arrives and recharges while idle.
+ */
+public class FleetSimulator {
+
+    private static final double SPEED_MPS = 15; // ~54 km/h
+    private static final double CHARGE_PER_SECOND = 0.5; // battery percentage
+    private static final double JITTER = 0.2; // +/- 20% of the reporting interval
+    private static final double CENTER_LAT = 40.4168; // Madrid
+    private static final double CENTER_LON = -3.7038;
+    private static final double SPREAD_DEGREES = 0.1;
+
+    /**
+     * One virtual drone. Ticks and commands may arrive on different threads,
+     * so state changes happen under the instance lock.
+     */
+    static class SimulatedDrone {
+        final String droneId;
+        final MqttClient client;
+        final TelemetryCodec.Status state = new TelemetryCodec.Status();
+        final TelemetryCodec.Command command = new TelemetryCodec.Command();
+        final byte[] frame = new byte[TelemetryCodec.STATUS_SIZE];
+        double battery = 100;
+        double destLat;
+        double destLon;
+        int weight;
+        long lastTickNanos = System.nanoTime();
+
+        SimulatedDrone(String droneId, MqttClient client, double lat, double lon) {
+            this.droneId = droneId;
+            this.client = client;
+            this.state.status = DroneStatus.IDLE;
+            this.state.lat = lat;
+            this.state.lon = lon;
+            this.state.battery = 100;
+        }
+
+        /**
+         * Apply a command or a cancel. Returns true if the drone aborted its
+         * job and should report right away.
+         */
+        synchronized boolean onCommand(byte[] payload) {
+            byte kind = TelemetryCodec.readCommand(payload, command);
+            if (kind == TelemetryCodec.KIND_CANCEL) {
+                if (state.status == DroneStatus.IDLE || state.requestMsb != command.requestMsb
+                        || state.requestLsb != command.requestLsb) {
+                    return false;
+                }
+                state.status = DroneStatus.IDLE;
+                state.requestMsb = 0;
+                state.requestLsb = 0;
+                weight = 0;
+                return true;
+            }
+            if (state.status != DroneStatus.IDLE) {
+                return false;
+            }
+            state.requestMsb = command.requestMsb;
+            state.requestLsb = command.requestLsb;
+            state.status = DroneStatus.ON_ROUTE;
+            destLat = command.lat;
+            destLon = command.lon;
+            weight = command.weight;
+            return false;
+        }
+
+        /**
+         * Advance the movement model to now and encode the status frame.
+         */
+        synchronized void advance() {
+            long now = System.nanoTime();
+            double seconds = (now - lastTickNanos) / 1e9;
+            lastTickNanos = now;
+
+            if (state.status == DroneStatus.ON_ROUTE) {
+                double remaining = SpatialIndex.haversine(state.lat, state.lon, destLat, destLon);
+                double step = min(remaining, SPEED_MPS * seconds);
+                if (remaining > 0) {
+                    double fraction = step / remaining;
+                    state.lat += (destLat - state.lat) * fraction;
+                    state.lon += (destLon - state.lon) * fraction;
+                }
+                battery -= step / 1000 * (BatteryModel.DRAIN_PER_KM + weight / 1000.0 * BatteryModel.DRAIN_PER_KM_KG);
+                if (step >= remaining) {
+                    // Arrived, the job is done
+                    state.status = DroneStatus.IDLE;
+                    state.requestMsb = 0;
+                    state.requestLsb = 0;
+                    weight = 0;
+                }
+            } else if (state.status == DroneStatus.IDLE) {
+                battery = min(100, battery + CHARGE_PER_SECOND * seconds);
+            }
+            battery = max(0, battery);
+            state.battery = (int) battery;
+            TelemetryCodec.encodeStatus(state, frame);
+        }
+    }
+
+    private final String brokerUrl;
+    private final String prefix;
+    private final int droneCount;
+    private final int freq;
+    private final int connections;
+    private final ScheduledExecutorService scheduler;
+    private final List<MqttClient> clients = new ArrayList<>();
+    private final List<SimulatedDrone> drones = new ArrayList<>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private long lastPublished;
+    private long lastReportNanos = System.nanoTime();
+
+    public FleetSimulator(String brokerUrl, String prefix, int droneCount, int statusFreq, int connections) {
+        this.brokerUrl = brokerUrl;
+        this.prefix = prefix;
+        this.droneCount = droneCount;
+        this.freq = statusFreq;
+        this.connections = max(1, connections);
+        this.scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    private String droneId(int i) {
+        return prefix + i;
+    }
+
+    /**
+     * Insert the simulated drones into the drones table so the Director
+     * accepts their status messages. Existing rows are left untouched.
+     */
+    public void register(Database database) throws SQLException {
+        Random random = new Random(42);
+        database.write(session -> {
+            PreparedStatement insertStmt = session.prepare(
+                    "INSERT OR IGNORE INTO drones (drone_id, curr_lat, curr_lon, curr_battery, curr_status) VALUES (?, ?, ?, ?, ?)");
+            for (int i = 0; i < droneCount; i++) {
+                insertStmt.setString(1, droneId(i));
+                insertStmt.setDouble(2, CENTER_LAT + (random.nextDouble() * 2 - 1) * SPREAD_DEGREES);
+                insertStmt.setDouble(3, CENTER_LON + (random.nextDouble() * 2 - 1) * SPREAD_DEGREES);
+                insertStmt.setInt(4, 100);
+                insertStmt.setInt(5, DroneStatus.IDLE.code);
+                insertStmt.addBatch();
+            }
+            return insertStmt.executeBatch();
+        });
+        System.out.println("Registered " + droneCount + " drones");
+    }
+
+    public void start() throws MqttException {
+        for (int c = 0; c < connections; c++) {
+            MqttClient client = new MqttClient(brokerUrl, prefix + "sim-" + c, new MemoryPersistence());
+            MqttConnectOptions connOpts = new MqttConnectOptions();
+            connOpts.setCleanSession(true);
+            connOpts.setMaxInflight(65535);
+            client.connect(connOpts);
+            clients.add(client);
+        }
+
+        // Same positions as register() so the Director's view matches
+        Random random = new Random(42);
+        for (int i = 0; i < droneCount; i++) {
+            double lat = CENTER_LAT + (random.nextDouble() * 2 - 1) * SPREAD_DEGREES;
+            double lon = CENTER_LON + (random.nextDouble() * 2 - 1) * SPREAD_DEGREES;
+            drones.add(new SimulatedDrone(droneId(i), clients.get(i % connections), lat, lon));
+        }
+
+        // Subscribe to every drone's command topic on its own connection, in batches
+        int batch = 100;
+        for (int from = 0; from < droneCount; from += batch) {
+            int to = min(droneCount, from + batch);
+            for (int c = 0; c < connections; c++) {
+                List<String> topics = new ArrayList<>();
+                List<IMqttMessageListener> listeners = new ArrayList<>();
+                for (int i = from; i < to; i++) {
+                    SimulatedDrone drone = drones.get(i);
+                    if (drone.client != clients.get(c)) {
+                        continue;
+                    }
+                    topics.add("command/" + drone.droneId);
+                    listeners.add((topic, message) -> {
+                        commands.incrementAndGet();
+                        if (drone.onCommand(message.getPayload())) {
+                            synchronized (drone) {
+                                drone.advance();
+                                drone.client.publish("status/" + drone.droneId, drone.frame, 0, false);
+                            }
+                        }
+                    });
+                }
+                if (!topics.isEmpty()) {
+                    int[] qos = new int[topics.size()];
+                    clients.get(c).subscribe(topics.toArray(new String[0]), qos,
+                            listeners.toArray(new IMqttMessageListener[0]));
+                }
+            }
+        }
+
+        // Spread the first reports over one interval to avoid a thundering herd
+        for (SimulatedDrone drone : drones) {
+            scheduler.schedule(() -> tick(drone), ThreadLocalRandom.current().nextLong(max(1, freq)),
+                    TimeUnit.MILLISECONDS);
+        }
+        scheduler.scheduleAtFixedRate(this::report, 5, 5, TimeUnit.SECONDS);
+        System.out.println("Simulating " + droneCount + " drones over " + connections + " connections");
+    }
+
+    private void tick(SimulatedDrone drone) {
+        try {
+            synchronized (drone) {
+                drone.advance();
+                // Synchronous publish, the frame is free to reuse once it returns
+                drone.client.publish("status/" + drone.droneId, drone.frame, 0, false);
+            }
+            published.incrementAndGet();
+        } catch (MqttException e) {
+            failed.incrementAndGet();
+        } finally {
+            long jitter = (long) (freq * JITTER * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+            scheduler.schedule(() -> tick(drone), max(1, freq + jitter), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        long total = published.get();
+        double rate = (total - lastPublished) / ((now - lastReportNanos) / 1e9);
+        lastPublished = total;
+        lastReportNanos = now;
+        int busy = 0;
+        for (SimulatedDrone drone : drones) {
+            synchronized (drone) {
+                if (drone.state.status != DroneStatus.IDLE) {
+                    busy++;
+                }
+            }
+        }
+        System.out.printf("Status msgs/s: %.0f, total: %d, failed: %d, commands: %d, busy drones: %d%n",
+                rate, total, failed.get(), commands.get(), busy);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.out.println(
+                    "Usage: FleetSimulator <brokerUrl> <dronePrefix> <droneCount> <statusFreqMs> [connections] [register]");
+            System.exit(1);
+        }
+
+        String brokerUrl = args[0];
+        String prefix = args[1];
+        int droneCount = Integer.parseInt(args[2]);
+        int statusFreq = Integer.parseInt(args[3]);
+        int connections = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+        try {
+            FleetSimulator simulator = new FleetSimulator(brokerUrl, prefix, droneCount, statusFreq, connections);
+            if (args.length > 5 && "register".equalsIgnoreCase(args[5])) {
+                try (Database database = new Database()) {
+                    database.migrate();
+                    simulator.register(database);
+                }
+            }
+            simulator.start();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
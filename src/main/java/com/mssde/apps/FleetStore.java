@@ -0,0 +1,363 @@
+package com.mssde.apps;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Authoritative in-memory view of the fleet, keyed by drone id.
+ * Status messages update the entries in place and a write-behind flusher
+ * persists the dirty ones to the drones table in batches.
+ */
+public class FleetStore {
+
+    /**
+     * Mutable state of a single drone. Fields are only touched while holding
+     * the monitor of the instance.
+     */
+    public static class DroneState {
+        private final String droneId;
+        private double lat;
+        private double lon;
+        private int battery;
+        private DroneStatus status = DroneStatus.OFFLINE;
+        private String requestId;
+        private boolean binary = true;
+        private boolean dirty;
+
+        DroneState(String droneId) {
+            this.droneId = droneId;
+        }
+
+        public String getDroneId() {
+            return droneId;
+        }
+
+        public synchronized double getLat() {
+            return lat;
+        }
+
+        public synchronized double getLon() {
+            return lon;
+        }
+
+        public synchronized int getBattery() {
+            return battery;
+        }
+
+        public synchronized DroneStatus getStatus() {
+            return status;
+        }
+
+        public synchronized String getRequestId() {
+            return requestId;
+        }
+
+        /**
+         * Whether the drone talks the binary telemetry format, otherwise
+         * commands are sent to it as JSON.
+         */
+        public synchronized boolean isBinary() {
+            return binary;
+        }
+    }
+
+    private final ConcurrentHashMap<String, DroneState> drones = new ConcurrentHashMap<>();
+    private final SpatialIndex idleIndex = new SpatialIndex();
+    private final Database database;
+    private ScheduledExecutorService flusher;
+    // Highest ROWID seen by a load, see loadNewFromDatabase
+    private volatile long lastRowid;
+
+    public FleetStore(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Rebuild the store from the drones table. Called once on startup.
+     */
+    public void loadFromDatabase() throws SQLException {
+        loadFromDatabase(droneId -> true);
+    }
+
+    /**
+     * Load the drones accepted by the filter that are not in the store yet,
+     * e.g. the drones of partitions this director just took over. Entries
+     * already in memory are newer than their rows and are left alone.
+     */
+    public List<String> loadFromDatabase(Predicate<String> filter) throws SQLException {
+        return load(filter, 0);
+    }
+
+    /**
+     * Like loadFromDatabase(filter), but only looks at rows inserted since the
+     * previous load, so drones registered while running are picked up cheaply.
+     */
+    public List<String> loadNewFromDatabase(Predicate<String> filter) throws SQLException {
+        return load(filter, lastRowid);
+    }
+
+    private List<String> load(Predicate<String> filter, long afterRowid) throws SQLException {
+        List<String> added = new ArrayList<>();
+        database.read(session -> {
+            PreparedStatement selectStmt = session.prepare(
+                    "SELECT ROWID, drone_id, curr_lat, curr_lon, curr_battery, curr_status, curr_request_id FROM drones WHERE ROWID > ?");
+            selectStmt.setLong(1, afterRowid);
+            try (ResultSet rs = selectStmt.executeQuery()) {
+                while (rs.next()) {
+                    lastRowid = Math.max(lastRowid, rs.getLong(1));
+                    String droneId = rs.getString("drone_id");
+                    if (drones.containsKey(droneId) || !filter.test(droneId)) {
+                        continue;
+                    }
+                    DroneState state = new DroneState(droneId);
+                    state.lat = rs.getDouble("curr_lat");
+                    state.lon = rs.getDouble("curr_lon");
+                    state.battery = rs.getInt("curr_battery");
+                    state.status = DroneStatus.fromCode(rs.getInt("curr_status"));
+                    state.requestId = rs.getString("curr_request_id");
+                    synchronized (state) {
+                        drones.put(droneId, state);
+                        reindex(state);
+                    }
+                    added.add(droneId);
+                }
+            }
+            return null;
+        });
+        return added;
+    }
+
+    /**
+     * Flush and drop the drones matched by the filter, e.g. when their
+     * partition moves to another director. Returns the removed ids.
+     */
+    public List<String> evict(Predicate<String> filter) {
+        flush();
+        List<String> removed = new ArrayList<>();
+        for (DroneState state : drones.values()) {
+            if (!filter.test(state.droneId)) {
+                continue;
+            }
+            synchronized (state) {
+                drones.remove(state.droneId);
+                idleIndex.remove(state.droneId);
+            }
+            removed.add(state.droneId);
+        }
+        return removed;
+    }
+
+    public boolean contains(String droneId) {
+        return drones.containsKey(droneId);
+    }
+
+    public DroneState get(String droneId) {
+        return drones.get(droneId);
+    }
+
+    public Collection<DroneState> all() {
+        return drones.values();
+    }
+
+    /**
+     * Apply a status report to a known drone. Returns false if the drone is
+     * not part of the fleet.
+     */
+    public boolean update(String droneId, double lat, double lon, int battery, DroneStatus status, boolean binary) {
+        DroneState state = drones.get(droneId);
+        if (state == null) {
+            return false;
+        }
+        synchronized (state) {
+            state.lat = lat;
+            state.lon = lon;
+            state.battery = battery;
+            state.status = status;
+            state.binary = binary;
+            state.dirty = true;
+            reindex(state);
+        }
+        return true;
+    }
+
+    /**
+     * Mark a drone as busy with the given request so it is not picked again
+     * before it reports back.
+     */
+    public void assign(String droneId, String requestId) {
+        DroneState state = drones.get(droneId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.status = DroneStatus.ASSIGNED;
+            state.requestId = requestId;
+            state.dirty = true;
+            reindex(state);
+        }
+    }
+
+    /**
+     * Undo assign() if the drone is still waiting on that request, e.g. when
+     * its command could not be delivered.
+     */
+    public void unassign(String droneId, String requestId) {
+        DroneState state = drones.get(droneId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (state.status != DroneStatus.ASSIGNED || !requestId.equals(state.requestId)) {
+                return;
+            }
+            state.status = DroneStatus.IDLE;
+            state.requestId = null;
+            state.dirty = true;
+            reindex(state);
+        }
+    }
+
+    /**
+     * Take a drone out of the pool until it reports again. Its last known
+     * position is kept.
+     */
+    public void markOffline(String droneId) {
+        DroneState state = drones.get(droneId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.status = DroneStatus.OFFLINE;
+            state.requestId = null;
+            state.dirty = true;
+            reindex(state);
+        }
+    }
+
+    /**
+     * Keep the idle index in sync with the state. Caller holds the state lock.
+     */
+    private void reindex(DroneState state) {
+        if (state.status == DroneStatus.IDLE) {
+            idleIndex.put(state, state.lat, state.lon);
+        } else {
+            idleIndex.remove(state.droneId);
+        }
+    }
+
+    /**
+     * Up to k idle drones closest to the given point, nearest first.
+     */
+    public List<DroneState> nearestIdle(double lat, double lon, int k) {
+        return idleIndex.nearest(lat, lon, k);
+    }
+
+    public int idleCount() {
+        return idleIndex.size();
+    }
+
+    /**
+     * Drones assigned or on route. Walks the whole fleet, meant for metrics
+     * scrapes rather than hot paths.
+     */
+    public int busyCount() {
+        int busy = 0;
+        for (DroneState state : drones.values()) {
+            DroneStatus status = state.getStatus();
+            if (status == DroneStatus.ASSIGNED || status == DroneStatus.ON_ROUTE) {
+                busy++;
+            }
+        }
+        return busy;
+    }
+
+    /**
+     * Start the write-behind flusher with the given interval in milliseconds.
+     */
+    public void startFlusher(long intervalMs) {
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fleet-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stopFlusher() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * Persist every dirty entry in a single transaction. The position of a
+     * drone on a job is also copied to its request, which is what /status
+     * reports as curr_latlong. Returns false if the transaction failed.
+     */
+    public boolean flush() {
+        List<DroneState> flushed = new ArrayList<>();
+        // Taken before any state is read, so every journal event newer than
+        // what this flush persists is stamped later than the rows
+        long now = System.currentTimeMillis();
+        try {
+            database.write(session -> {
+                PreparedStatement updateStmt = session.prepare(
+                        "UPDATE drones SET curr_lat = ?, curr_lon = ?, curr_battery = ?, curr_status = ?, curr_request_id = ?, updated_at = ? WHERE drone_id = ?");
+                PreparedStatement requestStmt = session.prepare(
+                        "UPDATE requests SET curr_lat = ?, curr_lon = ? WHERE request_id = ?");
+                int pending = 0;
+                int onJob = 0;
+                for (DroneState state : drones.values()) {
+                    synchronized (state) {
+                        if (!state.dirty) {
+                            continue;
+                        }
+                        state.dirty = false;
+                        updateStmt.setDouble(1, state.lat);
+                        updateStmt.setDouble(2, state.lon);
+                        updateStmt.setInt(3, state.battery);
+                        updateStmt.setInt(4, state.status.code);
+                        updateStmt.setString(5, state.requestId);
+                        updateStmt.setLong(6, now);
+                        updateStmt.setString(7, state.droneId);
+                        if (state.requestId != null && state.status == DroneStatus.ON_ROUTE) {
+                            requestStmt.setDouble(1, state.lat);
+                            requestStmt.setDouble(2, state.lon);
+                            requestStmt.setString(3, state.requestId);
+                            requestStmt.addBatch();
+                            onJob++;
+                        }
+                    }
+                    updateStmt.addBatch();
+                    flushed.add(state);
+                    pending++;
+                }
+                if (pending > 0) {
+                    updateStmt.executeBatch();
+                }
+                if (onJob > 0) {
+                    requestStmt.executeBatch();
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            // Nothing was written, the next flush retries these drones
+            for (DroneState state : flushed) {
+                synchronized (state) {
+                    state.dirty = true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+}
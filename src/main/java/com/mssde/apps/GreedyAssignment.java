@@ -0,0 +1,52 @@
+package com.mssde.apps;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Serves requests in arrival order, giving each one the closest feasible
+ * drone that is still free.
+ */
+public class GreedyAssignment implements AssignmentStrategy {
+
+    private static final int CANDIDATES = 16;
+
+    @Override
+    public List<Assignment> assign(List<PendingRequest> requests, FleetStore fleet) {
+        List<Assignment> result = new ArrayList<>();
+        Set<String> taken = new HashSet<>();
+        for (PendingRequest request : requests) {
+            if (taken.size() >= fleet.idleCount()) {
+                break;
+            }
+            double delivery = request.deliveryDistance();
+            // Widen the search until a free drone can serve the request or
+            // there are no more idle drones
+            int limit = CANDIDATES;
+            boolean assigned = false;
+            while (!assigned) {
+                List<FleetStore.DroneState> candidates = fleet.nearestIdle(request.originLat, request.originLon, limit);
+                for (FleetStore.DroneState drone : candidates) {
+                    if (taken.contains(drone.getDroneId())) {
+                        continue;
+                    }
+                    double pickup = SpatialIndex.haversine(drone.getLat(), drone.getLon(), request.originLat,
+                            request.originLon);
+                    if (BatteryModel.canServe(drone.getBattery(), pickup, delivery, request.weight)) {
+                        taken.add(drone.getDroneId());
+                        result.add(new Assignment(request, drone.getDroneId(), pickup));
+                        assigned = true;
+                        break;
+                    }
+                }
+                if (candidates.size() < limit) {
+                    break;
+                }
+                limit *= 2;
+            }
+        }
+        return result;
+    }
+}
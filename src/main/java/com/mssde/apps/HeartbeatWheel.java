@@ -0,0 +1,196 @@
+package com.mssde.apps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel of drone heartbeat deadlines.
+ *
+ * Each drone sits in the slot of its deadline. A status message usually only
+ * pushes the deadline of its entry forward without moving it, so the cost
+ * per message is one map lookup; the entry is only relinked, still in O(1),
+ * when its deadline moves before its slot. When the wheel reaches a slot it expires the
+ * entries whose deadline has passed and moves the others to the slot of their
+ * current deadline. Only the slot due is looked at on each tick, never the
+ * whole fleet.
+ *
+ * The timeout of every drone follows its own reporting interval, estimated
+ * as a moving average of the time between its messages.
+ */
+public class HeartbeatWheel {
+
+    // Missed reports before a drone is declared dead
+    private static final int MISSED_REPORTS = 3;
+    private static final long MIN_TIMEOUT_MS = 5000;
+    // Assumed interval until a drone has reported twice, Drone's default
+    private static final long DEFAULT_INTERVAL_MS = 60000;
+
+    private static class Entry {
+        final String droneId;
+        long lastSeen;
+        long intervalMs = DEFAULT_INTERVAL_MS;
+        long deadline;
+        // Absolute tick of the slot the entry is in
+        long tick;
+        Entry prev;
+        Entry next;
+
+        Entry(String droneId) {
+            this.droneId = droneId;
+        }
+    }
+
+    private final long tickMs;
+    private final Entry[] slots;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Consumer<String> onTimeout;
+    private ScheduledExecutorService timer;
+    private long nextTick;
+
+    public HeartbeatWheel(int slotCount, long tickMs, Consumer<String> onTimeout) {
+        this.tickMs = tickMs;
+        this.slots = new Entry[slotCount];
+        this.onTimeout = onTimeout;
+        this.nextTick = System.currentTimeMillis() / tickMs;
+    }
+
+    /**
+     * Record a status message from the drone, adding it to the wheel if it
+     * was not tracked yet.
+     */
+    public synchronized void touch(String droneId) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(droneId);
+        if (entry == null) {
+            entry = new Entry(droneId);
+            entry.lastSeen = now;
+            entry.deadline = now + timeout(entry);
+            entries.put(droneId, entry);
+            link(entry, nextTick);
+            return;
+        }
+        // Weight the latest gap by 1/4 so a single late report does not swing the timeout
+        long gap = now - entry.lastSeen;
+        entry.intervalMs += (gap - entry.intervalMs) / 4;
+        entry.lastSeen = now;
+        entry.deadline = now + timeout(entry);
+        if (entry.deadline / tickMs < entry.tick) {
+            // The timeout shrank below the slot the entry is in, move it earlier
+            unlink(entry);
+            link(entry, nextTick);
+        }
+    }
+
+    /**
+     * Start tracking a drone that has not reported yet, e.g. one loaded from
+     * the database on startup.
+     */
+    public synchronized void track(String droneId) {
+        if (!entries.containsKey(droneId)) {
+            touch(droneId);
+        }
+    }
+
+    public synchronized void remove(String droneId) {
+        Entry entry = entries.remove(droneId);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static long timeout(Entry entry) {
+        return Math.max(MIN_TIMEOUT_MS, entry.intervalMs * MISSED_REPORTS);
+    }
+
+    /**
+     * Put the entry in the slot of its deadline, or of minTick if that slot
+     * was already processed this round.
+     */
+    private void link(Entry entry, long minTick) {
+        entry.tick = Math.max(entry.deadline / tickMs, minTick);
+        int slot = (int) Math.floorMod(entry.tick, (long) slots.length);
+        entry.prev = null;
+        entry.next = slots[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        slots[slot] = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            slots[(int) Math.floorMod(entry.tick, (long) slots.length)] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    public void start() {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "heartbeat-wheel");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::advance, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (timer != null) {
+            timer.shutdown();
+        }
+    }
+
+    /**
+     * Process every slot up to now and report the drones that timed out.
+     * Callbacks run outside the lock so they can touch the wheel again.
+     */
+    private void advance() {
+        List<String> expired = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long current = now / tickMs;
+            // Catch up on missed ticks, but never go round more than once
+            long from = Math.max(nextTick, current - slots.length + 1);
+            for (long tick = from; tick <= current; tick++) {
+                int slot = (int) Math.floorMod(tick, (long) slots.length);
+                Entry entry = slots[slot];
+                slots[slot] = null;
+                while (entry != null) {
+                    Entry next = entry.next;
+                    entry.prev = null;
+                    entry.next = null;
+                    if (entry.deadline <= now) {
+                        entries.remove(entry.droneId);
+                        expired.add(entry.droneId);
+                    } else {
+                        link(entry, tick + 1);
+                    }
+                    entry = next;
+                }
+            }
+            nextTick = current + 1;
+        }
+        for (String droneId : expired) {
+            try {
+                onTimeout.accept(droneId);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
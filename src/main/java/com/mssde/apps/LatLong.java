@@ -0,0 +1,22 @@
+package com.mssde.apps;
+
+/**
+ * Helpers for the "lat,long" strings used in the API and MQTT payloads.
+ */
+public class LatLong {
+
+    private LatLong() {
+    }
+
+    public static double parseLat(String latlong) {
+        return Double.parseDouble(latlong.substring(0, latlong.indexOf(',')).trim());
+    }
+
+    public static double parseLon(String latlong) {
+        return Double.parseDouble(latlong.substring(latlong.indexOf(',') + 1).trim());
+    }
+
+    public static String format(double lat, double lon) {
+        return lat + "," + lon;
+    }
+}
@@ -0,0 +1,178 @@
+package com.mssde.apps;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP load test of the Api's request path. Each simulated client loops
+ * creating a request with POST /request and reading it back with
+ * GET /status/{id}, one call at a time on its own connection. The run is
+ * repeated for every concurrency level given, and the throughput and
+ * latency of each endpoint are printed per level.
+ */
+public class LoadTest {
+
+    private static final Pattern REQUEST_ID = Pattern.compile("\"request_id\"\\s*:\\s*\"([^\"]+)\"");
+
+    /**
+     * Latencies of one endpoint as seen by one client, in nanoseconds.
+     */
+    static class Latencies {
+        long[] values = new long[1024];
+        int count;
+        int errors;
+
+        void add(long nanos) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = nanos;
+        }
+
+        void addAll(Latencies other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.values[i]);
+            }
+            errors += other.errors;
+        }
+
+        double percentileMs(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) (p * count))] / 1e6;
+        }
+    }
+
+    private final String baseUrl;
+    private final HttpClient http;
+
+    public LoadTest(String baseUrl) {
+        this.baseUrl = baseUrl;
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    /**
+     * Run the given number of clients for the given time and print one line
+     * of results.
+     */
+    public void run(int clients, long seconds) throws InterruptedException {
+        Latencies[] posts = new Latencies[clients];
+        Latencies[] gets = new Latencies[clients];
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        long[] deadline = new long[1];
+        for (int i = 0; i < clients; i++) {
+            Latencies post = posts[i] = new Latencies();
+            Latencies get = gets[i] = new Latencies();
+            Thread thread = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < deadline[0]) {
+                    String requestId = createRequest(post);
+                    if (requestId != null) {
+                        readStatus(requestId, get);
+                    }
+                }
+            }, "client-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        deadline[0] = start + seconds * 1000000000L;
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        Latencies post = new Latencies();
+        Latencies get = new Latencies();
+        for (int i = 0; i < clients; i++) {
+            post.addAll(posts[i]);
+            get.addAll(gets[i]);
+        }
+        System.out.printf("%7d %10.0f %8.1f %8.1f %7d %10.0f %8.1f %8.1f %7d%n", clients,
+                post.count / elapsed, post.percentileMs(0.5), post.percentileMs(0.99), post.errors,
+                get.count / elapsed, get.percentileMs(0.5), get.percentileMs(0.99), get.errors);
+    }
+
+    private String createRequest(Latencies latencies) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Random coordinates around Madrid, the Api rejects identical requests
+        // Locale.ROOT, a comma decimal separator would not parse as "lat,long"
+        String body = String.format(Locale.ROOT, "{\"origin_latlong\": \"%.7f,%.7f\", \"dest_latlong\": \"%.7f,%.7f\", \"weight\": %d}",
+                40.3 + random.nextDouble() * 0.3, -3.85 + random.nextDouble() * 0.3,
+                40.3 + random.nextDouble() * 0.3, -3.85 + random.nextDouble() * 0.3, 100 + random.nextInt(1900));
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/request"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        long start = System.nanoTime();
+        try {
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 201) {
+                latencies.errors++;
+                return null;
+            }
+            latencies.add(System.nanoTime() - start);
+            Matcher matcher = REQUEST_ID.matcher(response.body());
+            return matcher.find() ? matcher.group(1) : null;
+        } catch (Exception e) {
+            latencies.errors++;
+            return null;
+        }
+    }
+
+    private void readStatus(String requestId, Latencies latencies) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/status/" + requestId)).GET().build();
+        long start = System.nanoTime();
+        try {
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                latencies.errors++;
+                return;
+            }
+            latencies.add(System.nanoTime() - start);
+        } catch (Exception e) {
+            latencies.errors++;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 3) {
+            System.out.println("Usage: LoadTest <baseUrl> <secondsPerLevel> <clients> [clients...]");
+            System.out.println("e.g. LoadTest http://localhost:8080 30 50 200 500 1000");
+            System.exit(1);
+        }
+        LoadTest loadTest = new LoadTest(args[0]);
+        long seconds = Long.parseLong(args[1]);
+        System.out.println("clients  POST req/s  p50 ms   p99 ms  errors   GET req/s  p50 ms   p99 ms  errors");
+        for (int i = 2; i < args.length; i++) {
+            loadTest.run(Integer.parseInt(args[i]), seconds);
+        }
+    }
+}
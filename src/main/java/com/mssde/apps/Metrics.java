@@ -0,0 +1,73 @@
+package com.mssde.apps;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * Helpers shared by the processes that expose metrics.
+ *
+ * Meters are created once and kept in fields, so the hot paths only call
+ * Timer.record(long, TimeUnit) or Counter.increment(). Latency percentiles
+ * come from Micrometer's HdrHistogram recorders, which do not allocate per
+ * sample.
+ */
+public class Metrics {
+
+    public static final String PORT_PROPERTY = "metrics.port";
+
+    private Metrics() {
+    }
+
+    /**
+     * Latency timer with p50/p90/p99/p999 over a one minute sliding window.
+     */
+    public static Timer latency(MeterRegistry registry, String name, String description, String... tags) {
+        return Timer.builder(name)
+                .description(description)
+                .tags(tags)
+                .publishPercentiles(0.5, 0.9, 0.99, 0.999)
+                .distributionStatisticExpiry(Duration.ofMinutes(1))
+                .distributionStatisticBufferLength(3)
+                .register(registry);
+    }
+
+    public static PrometheusMeterRegistry newRegistry() {
+        return new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    }
+
+    /**
+     * Serve the registry in Prometheus text format on /metrics, on the port
+     * given by the metrics.port system property. Does nothing if it is not set.
+     */
+    public static void serve(PrometheusMeterRegistry registry) {
+        String port = System.getProperty(PORT_PROPERTY);
+        if (port == null || port.isEmpty()) {
+            return;
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(port)), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            // The default executor runs the scrapes on the server's own thread
+            server.start();
+            System.out.println("Serving metrics on port " + port + " at /metrics");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
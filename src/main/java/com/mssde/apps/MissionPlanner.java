@@ -0,0 +1,699 @@
+package com.mssde.apps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chains pending requests into multi-stop missions, one per busy drone.
+ *
+ * A mission is the request a drone is committed to, flown as a pickup leg
+ * and then a delivery leg, followed by a short tail of requests planned to
+ * come after it. Only the committed request is assigned in the database. The
+ * tail is still pending there and stays a plan, reshuffled on every pass,
+ * until the drone delivers and the head of the tail is committed next.
+ *
+ * A request joins the route it lengthens the least, and only if that empty
+ * flight is shorter than the one of the nearest idle drone and the drone's
+ * battery covers the whole route. No pickup in a route is more than
+ * MAX_DEADHEAD_METERS of empty flight away from the stop before it, nor more
+ * than MAX_DELAY_METERS of flight away from the drone. A planned request goes
+ * back to the idle drones as soon as one of them is closer to its pickup. A
+ * time-bounded local search then moves and swaps planned requests between
+ * nearby routes while that cuts the total empty distance. It works on a
+ * Snapshot of the routes, so it can run on a thread of its own, and its
+ * result is dropped if the routes changed in the meantime.
+ *
+ * Planning runs on the dispatcher thread. get() is safe from any thread.
+ */
+public class MissionPlanner {
+
+    // Requests planned after the committed one
+    public static final int MAX_STOPS = 4;
+    // Routes ending closest to a request that are tried for it
+    private static final int CANDIDATE_ROUTES = 8;
+    private static final int MAX_PLANNED = 1024;
+    // How close to a pickup or destination counts as being there
+    public static final double ARRIVAL_METERS = 100;
+    // Smallest improvement in meters worth a move, keeps the search from cycling
+    private static final double EPSILON = 1.0;
+    // Longest empty flight to a planned pickup, even with no idle drone around
+    public static final double MAX_DEADHEAD_METERS = 5000;
+    // Longest flight before a planned pickup is reached, bounds how late it is served
+    public static final double MAX_DELAY_METERS = 20000;
+
+    // Empty flight from the destination of one planned request to the origin of another, by slot
+    private interface Distances {
+        double get(int from, int to);
+    }
+
+    public enum Leg {
+        PICKUP,
+        DELIVERY
+    }
+
+    private static class Planned {
+        final AssignmentStrategy.PendingRequest request;
+        final int slot;
+        final double delivery;
+
+        Planned(AssignmentStrategy.PendingRequest request, int slot) {
+            this.request = request;
+            this.slot = slot;
+            this.delivery = request.deliveryDistance();
+        }
+    }
+
+    /**
+     * Route of one drone. The committed request and its leg only change on
+     * the dispatcher thread, the arrival flags are also set from the MQTT
+     * callback.
+     */
+    public static class Mission {
+        final String droneId;
+        private volatile AssignmentStrategy.PendingRequest request;
+        private volatile long requestMsb;
+        private volatile long requestLsb;
+        private volatile Leg leg;
+        private volatile boolean departed;
+        private volatile boolean arrived;
+        final List<Planned> tail = new ArrayList<>();
+        // Battery left for the tail once the committed request is delivered
+        double budget;
+        // Flight left on the committed request before the tail starts
+        double remaining;
+
+        Mission(String droneId) {
+            this.droneId = droneId;
+        }
+
+        void commit(AssignmentStrategy.PendingRequest request, Leg leg) {
+            TelemetryCodec.Status ids = new TelemetryCodec.Status();
+            ids.setRequestId(request.requestId);
+            this.requestMsb = ids.requestMsb;
+            this.requestLsb = ids.requestLsb;
+            this.request = request;
+            setLeg(leg);
+        }
+
+        void setLeg(Leg leg) {
+            this.leg = leg;
+            this.departed = false;
+            this.arrived = false;
+        }
+
+        public AssignmentStrategy.PendingRequest getRequest() {
+            return request;
+        }
+
+        public Leg getLeg() {
+            return leg;
+        }
+
+        public double targetLat() {
+            return leg == Leg.PICKUP ? request.originLat : request.destLat;
+        }
+
+        public double targetLon() {
+            return leg == Leg.PICKUP ? request.originLon : request.destLon;
+        }
+
+        /**
+         * Whether the status report is about the committed request.
+         */
+        public boolean isFor(TelemetryCodec.Status status) {
+            return status.requestMsb == requestMsb && status.requestLsb == requestLsb;
+        }
+
+        /**
+         * Whether a drone at the position is at the target of the current leg.
+         */
+        public boolean isAt(double lat, double lon) {
+            return SpatialIndex.haversine(lat, lon, targetLat(), targetLon()) <= ARRIVAL_METERS;
+        }
+
+        public void markDeparted() {
+            departed = true;
+        }
+
+        /**
+         * Called on an idle report. The drone is done with the leg if it left
+         * on it since, or if it is at the target anyway. Returns true once
+         * per leg, the first time that happens.
+         */
+        public boolean arrive(double lat, double lon) {
+            if (arrived || !(departed || isAt(lat, lon))) {
+                return false;
+            }
+            departed = false;
+            arrived = true;
+            return true;
+        }
+
+        /**
+         * Claim an arrival reported by arrive(), false if already handled.
+         */
+        public boolean takeArrival() {
+            if (!arrived) {
+                return false;
+            }
+            arrived = false;
+            return true;
+        }
+    }
+
+    private final FleetStore fleet;
+    private final Map<String, Mission> missions = new ConcurrentHashMap<>();
+    // Request id to the mission it is planned in
+    private final Map<String, Mission> plannedBy = new HashMap<>();
+    private final DistanceMatrix matrix = new DistanceMatrix(MAX_PLANNED);
+    private final Distances distances = matrix::get;
+    // Bumped whenever a route changes, a snapshot of unchanged routes is not taken
+    private long changes;
+    private long snapshotAt = -1;
+    // Distances of the current snapshot, only one is searched at a time
+    private float[] snapshotDistances = new float[0];
+    // Where each route currently ends, the destination of its committed request
+    private final SpatialIndex ends = new SpatialIndex();
+
+    public MissionPlanner(FleetStore fleet) {
+        this.fleet = fleet;
+    }
+
+    public Mission get(String droneId) {
+        return missions.get(droneId);
+    }
+
+    public int missionCount() {
+        return missions.size();
+    }
+
+    public synchronized int plannedCount() {
+        return plannedBy.size();
+    }
+
+    /**
+     * Start a mission for a drone that was just committed to the request,
+     * replacing any mission it had.
+     */
+    public synchronized void start(String droneId, AssignmentStrategy.PendingRequest request, Leg leg) {
+        release(droneId);
+        FleetStore.DroneState drone = fleet.get(droneId);
+        if (drone == null) {
+            return;
+        }
+        Mission mission = new Mission(droneId);
+        mission.commit(request, leg);
+        missions.put(droneId, mission);
+        changes++;
+        ends.put(drone, request.destLat, request.destLon);
+    }
+
+    public synchronized void setLeg(String droneId, Leg leg) {
+        Mission mission = missions.get(droneId);
+        if (mission != null) {
+            mission.setLeg(leg);
+        }
+    }
+
+    /**
+     * End the mission of the drone. Its planned requests are simply pending
+     * again and get planned elsewhere on the next pass.
+     */
+    public synchronized void release(String droneId) {
+        Mission mission = missions.remove(droneId);
+        if (mission == null) {
+            return;
+        }
+        changes++;
+        for (Planned planned : mission.tail) {
+            plannedBy.remove(planned.request.requestId);
+            matrix.remove(planned.request.requestId);
+        }
+        mission.tail.clear();
+        ends.remove(droneId);
+    }
+
+    /**
+     * Take a request out of whatever route it was planned in.
+     */
+    public synchronized void forget(String requestId) {
+        Mission mission = plannedBy.remove(requestId);
+        if (mission != null) {
+            mission.tail.removeIf(planned -> planned.request.requestId.equals(requestId));
+            matrix.remove(requestId);
+            changes++;
+        }
+    }
+
+    /**
+     * The request the drone should do after the one it just delivered, or
+     * null if there is none or its battery no longer covers it.
+     */
+    public synchronized AssignmentStrategy.PendingRequest next(String droneId) {
+        Mission mission = missions.get(droneId);
+        FleetStore.DroneState drone = fleet.get(droneId);
+        if (mission == null || drone == null || mission.tail.isEmpty()) {
+            return null;
+        }
+        AssignmentStrategy.PendingRequest head = mission.tail.get(0).request;
+        double pickup = SpatialIndex.haversine(drone.getLat(), drone.getLon(), head.originLat, head.originLon);
+        if (!BatteryModel.canServe(drone.getBattery(), pickup, head.deliveryDistance(), head.weight)) {
+            return null;
+        }
+        return head;
+    }
+
+    /**
+     * Commit the head of the tail, once next() was accepted by the database.
+     */
+    public synchronized void advance(String droneId) {
+        Mission mission = missions.get(droneId);
+        FleetStore.DroneState drone = fleet.get(droneId);
+        if (mission == null || drone == null || mission.tail.isEmpty()) {
+            return;
+        }
+        Planned head = mission.tail.remove(0);
+        plannedBy.remove(head.request.requestId);
+        matrix.remove(head.request.requestId);
+        mission.commit(head.request, Leg.PICKUP);
+        changes++;
+        ends.put(drone, head.request.destLat, head.request.destLon);
+    }
+
+    /**
+     * Fit pending requests into the routes of busy drones. Requests planned
+     * on an earlier pass keep their place, those no longer pending are
+     * dropped. Returns the requests left for idle drones.
+     */
+    public synchronized List<AssignmentStrategy.PendingRequest> plan(List<AssignmentStrategy.PendingRequest> pending) {
+        Set<String> pendingIds = new HashSet<>();
+        for (AssignmentStrategy.PendingRequest request : pending) {
+            pendingIds.add(request.requestId);
+        }
+        for (String requestId : new ArrayList<>(plannedBy.keySet())) {
+            if (!pendingIds.contains(requestId)) {
+                forget(requestId);
+            }
+        }
+        refreshBudgets();
+        releaseToIdle();
+
+        List<AssignmentStrategy.PendingRequest> unplanned = new ArrayList<>();
+        for (AssignmentStrategy.PendingRequest request : pending) {
+            if (plannedBy.containsKey(request.requestId)) {
+                continue;
+            }
+            if (missions.isEmpty() || !insert(request)) {
+                unplanned.add(request);
+            }
+        }
+        return unplanned;
+    }
+
+    /**
+     * Copy the routes that have planned requests, the nearby routes the
+     * search may move them to, and the distances between the planned
+     * requests. Returns null if no route changed since the last snapshot.
+     * The distances buffer is reused, so a snapshot must be done with
+     * before the next one is taken.
+     */
+    public synchronized Snapshot snapshot() {
+        if (changes == snapshotAt) {
+            return null;
+        }
+        snapshotAt = changes;
+        refreshBudgets();
+        Snapshot snapshot = new Snapshot();
+        Map<Mission, Mission> copies = new HashMap<>();
+        List<Planned> planned = new ArrayList<>();
+        for (Mission mission : new LinkedHashSet<>(plannedBy.values())) {
+            Mission copy = snapshot.copy(mission, copies);
+            for (Planned live : mission.tail) {
+                Planned local = new Planned(live.request, planned.size());
+                planned.add(live);
+                copy.tail.add(local);
+                snapshot.plannedBy.put(live.request.requestId, copy);
+                snapshot.live.put(live.request.requestId, live);
+            }
+        }
+        for (Planned live : planned) {
+            List<Mission> nearby = new ArrayList<>(CANDIDATE_ROUTES);
+            for (Mission mission : candidates(live.request.originLat, live.request.originLon)) {
+                nearby.add(snapshot.copy(mission, copies));
+            }
+            snapshot.nearby.put(live.request.requestId, nearby);
+        }
+        int n = planned.size();
+        if (snapshotDistances.length < n * n) {
+            snapshotDistances = new float[Math.max(n * n, snapshotDistances.length * 2)];
+        }
+        float[] local = snapshotDistances;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                local[i * n + j] = matrix.get(planned.get(i).slot, planned.get(j).slot);
+            }
+        }
+        snapshot.distances = (from, to) -> local[from * n + to];
+        return snapshot;
+    }
+
+    /**
+     * Take the routes found by the search on the snapshot. Nothing is taken
+     * if any of the routes it changed was changed here too since, or no
+     * longer fits the drone's battery. Returns whether the routes were taken.
+     */
+    public synchronized boolean apply(Snapshot snapshot) {
+        Map<Mission, List<Planned>> routes = new HashMap<>();
+        for (Mission copy : snapshot.changed) {
+            Mission mission = snapshot.sources.get(copy);
+            if (missions.get(mission.droneId) != mission || mission.request != copy.request
+                    || !mission.tail.equals(snapshot.sourceTails.get(copy))) {
+                return false;
+            }
+            List<Planned> route = new ArrayList<>(copy.tail.size());
+            for (Planned planned : copy.tail) {
+                route.add(snapshot.live.get(planned.request.requestId));
+            }
+            if (!fits(distances, mission, route)) {
+                return false;
+            }
+            routes.put(mission, route);
+        }
+        if (!routes.isEmpty()) {
+            changes++;
+        }
+        for (Map.Entry<Mission, List<Planned>> entry : routes.entrySet()) {
+            setTail(entry.getKey(), entry.getValue());
+            for (Planned planned : entry.getValue()) {
+                plannedBy.put(planned.request.requestId, entry.getKey());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Give planned requests back to the idle drones when one of them is
+     * closer to the pickup than the stop before it in the route. They are
+     * then planned again like any new request.
+     */
+    private void releaseToIdle() {
+        for (Mission mission : new LinkedHashSet<>(plannedBy.values())) {
+            List<Planned> kept = new ArrayList<>(mission.tail.size());
+            for (Planned planned : mission.tail) {
+                if (idleDistance(planned.request) < emptyFlight(distances, mission, kept, planned) - EPSILON) {
+                    plannedBy.remove(planned.request.requestId);
+                    matrix.remove(planned.request.requestId);
+                } else {
+                    kept.add(planned);
+                }
+            }
+            if (kept.size() < mission.tail.size()) {
+                setTail(mission, kept);
+                changes++;
+            }
+        }
+    }
+
+    /**
+     * Empty flight of the nearest idle drone to the pickup.
+     */
+    private double idleDistance(AssignmentStrategy.PendingRequest request) {
+        List<FleetStore.DroneState> idle = fleet.nearestIdle(request.originLat, request.originLon, 1);
+        if (idle.isEmpty()) {
+            return Double.MAX_VALUE;
+        }
+        FleetStore.DroneState drone = idle.get(0);
+        return SpatialIndex.haversine(drone.getLat(), drone.getLon(), request.originLat, request.originLon);
+    }
+
+    /**
+     * Battery each drone has left for its tail: what it has now, minus the
+     * rest of its committed request and the reserve.
+     */
+    private void refreshBudgets() {
+        for (Mission mission : missions.values()) {
+            FleetStore.DroneState drone = fleet.get(mission.droneId);
+            if (drone == null) {
+                mission.budget = 0;
+                continue;
+            }
+            AssignmentStrategy.PendingRequest request = mission.request;
+            double lat = drone.getLat();
+            double lon = drone.getLon();
+            double committed;
+            if (mission.leg == Leg.PICKUP) {
+                double pickup = SpatialIndex.haversine(lat, lon, request.originLat, request.originLon);
+                committed = BatteryModel.required(pickup, request.deliveryDistance(), request.weight);
+                mission.remaining = pickup + request.deliveryDistance();
+            } else {
+                mission.remaining = SpatialIndex.haversine(lat, lon, request.destLat, request.destLon);
+                committed = BatteryModel.required(0, mission.remaining, request.weight);
+            }
+            mission.budget = drone.getBattery() - BatteryModel.RESERVE - committed;
+        }
+    }
+
+    private List<Mission> candidates(double lat, double lon) {
+        List<Mission> candidates = new ArrayList<>(CANDIDATE_ROUTES);
+        for (FleetStore.DroneState drone : ends.nearest(lat, lon, CANDIDATE_ROUTES)) {
+            Mission mission = missions.get(drone.getDroneId());
+            if (mission != null) {
+                candidates.add(mission);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Cheapest insertion of a new request. The request is only chained if
+     * that beats the empty flight of the nearest idle drone.
+     */
+    private boolean insert(AssignmentStrategy.PendingRequest request) {
+        // Only routes with room left, the matrix row is only worth computing
+        // if there is one
+        List<Mission> open = candidates(request.originLat, request.originLon);
+        open.removeIf(mission -> mission.tail.size() >= MAX_STOPS);
+        if (open.isEmpty()) {
+            return false;
+        }
+        double limit = idleDistance(request);
+        int slot = matrix.add(request);
+        if (slot < 0) {
+            return false;
+        }
+        Planned planned = new Planned(request, slot);
+        Mission best = null;
+        List<Planned> bestRoute = null;
+        double bestDelta = limit;
+        for (Mission mission : open) {
+            double before = deadhead(distances, mission, mission.tail);
+            for (int i = 0; i <= mission.tail.size(); i++) {
+                List<Planned> route = new ArrayList<>(mission.tail);
+                route.add(i, planned);
+                double delta = deadhead(distances, mission, route) - before;
+                if (delta < bestDelta && fits(distances, mission, route)) {
+                    best = mission;
+                    bestRoute = route;
+                    bestDelta = delta;
+                }
+            }
+        }
+        if (best == null) {
+            matrix.remove(request.requestId);
+            return false;
+        }
+        setTail(best, bestRoute);
+        changes++;
+        plannedBy.put(request.requestId, best);
+        return true;
+    }
+
+    private static void setTail(Mission mission, List<Planned> route) {
+        mission.tail.clear();
+        mission.tail.addAll(route);
+    }
+
+    /**
+     * Empty flight to the planned request when it follows the route.
+     */
+    private static double emptyFlight(Distances distances, Mission mission, List<Planned> route, Planned next) {
+        if (route.isEmpty()) {
+            AssignmentStrategy.PendingRequest committed = mission.request;
+            return SpatialIndex.haversine(committed.destLat, committed.destLon, next.request.originLat,
+                    next.request.originLon);
+        }
+        return distances.get(route.get(route.size() - 1).slot, next.slot);
+    }
+
+    /**
+     * Empty flight distance of the route after the committed request.
+     */
+    private static double deadhead(Distances distances, Mission mission, List<Planned> route) {
+        double total = 0;
+        for (int i = 0; i < route.size(); i++) {
+            total += emptyFlight(distances, mission, route.subList(0, i), route.get(i));
+        }
+        return total;
+    }
+
+    /**
+     * Whether the drone's battery covers every job of the route, and every
+     * pickup is within the deadhead and delay bounds.
+     */
+    private static boolean fits(Distances distances, Mission mission, List<Planned> route) {
+        double needed = 0;
+        double flown = mission.remaining;
+        for (int i = 0; i < route.size(); i++) {
+            Planned planned = route.get(i);
+            double empty = emptyFlight(distances, mission, route.subList(0, i), planned);
+            flown += empty;
+            if (empty > MAX_DEADHEAD_METERS || flown > MAX_DELAY_METERS) {
+                return false;
+            }
+            needed += BatteryModel.required(empty, planned.delivery, planned.request.weight);
+            flown += planned.delivery;
+        }
+        return needed <= mission.budget;
+    }
+
+    /**
+     * Copy of the routes for the local search, owned by the thread running
+     * it. Planned requests are numbered by their row in the copied distances.
+     */
+    public static class Snapshot {
+        private final Map<String, Mission> plannedBy = new HashMap<>();
+        private final Map<String, List<Mission>> nearby = new HashMap<>();
+        // Copy to the mission it was taken from, and the tail it had then
+        private final Map<Mission, Mission> sources = new HashMap<>();
+        private final Map<Mission, List<Planned>> sourceTails = new HashMap<>();
+        private final Map<String, Planned> live = new HashMap<>();
+        private final Set<Mission> changed = new HashSet<>();
+        private Distances distances;
+
+        private Mission copy(Mission mission, Map<Mission, Mission> copies) {
+            Mission copy = copies.get(mission);
+            if (copy == null) {
+                copy = new Mission(mission.droneId);
+                copy.request = mission.request;
+                copy.budget = mission.budget;
+                copy.remaining = mission.remaining;
+                copies.put(mission, copy);
+                sources.put(copy, mission);
+                sourceTails.put(copy, new ArrayList<>(mission.tail));
+            }
+            return copy;
+        }
+
+        public int plannedCount() {
+            return plannedBy.size();
+        }
+
+        /**
+         * Improve the routes until no move helps, the given number of moves
+         * was made or the time budget runs out. Returns the number of moves.
+         */
+        public int optimize(int maxMoves, long budgetMs) {
+            long deadline = System.nanoTime() + budgetMs * 1000000;
+            int moves = 0;
+            boolean improved = true;
+            while (improved) {
+                improved = false;
+                for (Mission mission : new LinkedHashSet<>(plannedBy.values())) {
+                    for (int i = 0; i < mission.tail.size(); i++) {
+                        if (moves >= maxMoves || System.nanoTime() >= deadline) {
+                            return moves;
+                        }
+                        List<Mission> candidates = nearby.get(mission.tail.get(i).request.requestId);
+                        if (relocate(mission, i, candidates) || swap(mission, i, candidates)) {
+                            moves++;
+                            improved = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            return moves;
+        }
+
+        /**
+         * Move the planned request at the index to the best spot in a nearby
+         * route, its own included, if that shortens the empty flights.
+         */
+        private boolean relocate(Mission from, int index, List<Mission> nearby) {
+            Planned planned = from.tail.get(index);
+            List<Planned> shorter = new ArrayList<>(from.tail);
+            shorter.remove(index);
+            double gain = deadhead(distances, from, from.tail) - deadhead(distances, from, shorter);
+
+            List<Mission> targets = new ArrayList<>(nearby);
+            if (!targets.contains(from)) {
+                targets.add(from);
+            }
+            for (Mission to : targets) {
+                List<Planned> base = to == from ? shorter : to.tail;
+                if (to != from && base.size() >= MAX_STOPS) {
+                    continue;
+                }
+                double before = deadhead(distances, to, base);
+                for (int i = 0; i <= base.size(); i++) {
+                    if (to == from && i == index) {
+                        continue;
+                    }
+                    List<Planned> route = new ArrayList<>(base);
+                    route.add(i, planned);
+                    if (deadhead(distances, to, route) - before < gain - EPSILON && fits(distances, to, route)) {
+                        if (to != from) {
+                            setRoute(from, shorter);
+                            plannedBy.put(planned.request.requestId, to);
+                        }
+                        setRoute(to, route);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Exchange the planned request at the index with one of a nearby route.
+         */
+        private boolean swap(Mission first, int index, List<Mission> nearby) {
+            Planned a = first.tail.get(index);
+            double firstBefore = deadhead(distances, first, first.tail);
+            for (Mission second : nearby) {
+                if (second == first) {
+                    continue;
+                }
+                double before = firstBefore + deadhead(distances, second, second.tail);
+                for (int j = 0; j < second.tail.size(); j++) {
+                    Planned b = second.tail.get(j);
+                    List<Planned> firstRoute = new ArrayList<>(first.tail);
+                    firstRoute.set(index, b);
+                    List<Planned> secondRoute = new ArrayList<>(second.tail);
+                    secondRoute.set(j, a);
+                    double after = deadhead(distances, first, firstRoute) + deadhead(distances, second, secondRoute);
+                    if (after < before - EPSILON && fits(distances, first, firstRoute)
+                            && fits(distances, second, secondRoute)) {
+                        setRoute(first, firstRoute);
+                        setRoute(second, secondRoute);
+                        plannedBy.put(a.request.requestId, second);
+                        plannedBy.put(b.request.requestId, first);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void setRoute(Mission mission, List<Planned> route) {
+            setTail(mission, route);
+            changed.add(mission);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.mssde.apps;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Bulk intake of delivery requests for POST /requests/batch.
+ *
+ * The body is either a JSON array or newline delimited JSON objects, and is
+ * read one item at a time. Each item carries an idempotency_key chosen by the
+ * client: a key already stored, or seen earlier in the same batch, returns the
+ * request created for it instead of a new one, so a batch can be resent
+ * safely after a timeout. Validation and deduplication happen in memory, then
+ * the lookup of known keys and the inserts run in a single write transaction
+ * with JDBC batches.
+ */
+public class RequestIntake {
+
+    public static final int MAX_ITEMS = 10000;
+    public static final int MAX_KEY_LENGTH = 128;
+    // Keys per lookup query, well below SQLite's bound parameter limit
+    private static final int LOOKUP_CHUNK = 500;
+    // One statement for every chunk, short chunks are padded with NULLs which never match
+    private static final String LOOKUP_SQL = "SELECT idempotency_key, request_id, origin_lat, origin_lon, dest_lat, dest_lon, weight "
+            + "FROM requests WHERE idempotency_key IN (?" + ", ?".repeat(LOOKUP_CHUNK - 1) + ")";
+    private static final int INSERT_CHUNK = 1000;
+
+    public static final String CREATED = "created";
+    public static final String EXISTING = "existing";
+
+    /**
+     * Thrown when the batch holds more than MAX_ITEMS items.
+     */
+    public static class TooManyItemsException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooManyItemsException() {
+            super("A batch holds at most " + MAX_ITEMS + " requests");
+        }
+    }
+
+    /**
+     * One item of the batch and, once processed, its outcome.
+     */
+    public static class Item {
+        final int index;
+        String key;
+        double originLat;
+        double originLon;
+        double destLat;
+        double destLon;
+        int weight;
+        String requestId;
+        String result;
+        String error;
+
+        Item(int index) {
+            this.index = index;
+        }
+
+        boolean sameRequest(double originLat, double originLon, double destLat, double destLon, int weight) {
+            return this.originLat == originLat && this.originLon == originLon && this.destLat == destLat
+                    && this.destLon == destLon && this.weight == weight;
+        }
+
+        public boolean isCreated() {
+            return CREATED.equals(result);
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public Map<String, Object> toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("index", index);
+            if (key != null) {
+                json.put("idempotency_key", key);
+            }
+            if (error != null) {
+                json.put("error", error);
+            } else {
+                json.put("request_id", requestId);
+                json.put("result", result);
+            }
+            return json;
+        }
+    }
+
+    private final Database database;
+    private final ObjectReader reader;
+    // No-op until bindMetrics() is called
+    private Counter createdCounter = Counter.builder("api.intake.items").register(new CompositeMeterRegistry());
+    private Counter existingCounter = createdCounter;
+    private Counter failedCounter = createdCounter;
+
+    public RequestIntake(Database database, ObjectMapper mapper) {
+        this.database = database;
+        this.reader = mapper.readerFor(JsonNode.class);
+    }
+
+    public void bindMetrics(MeterRegistry registry) {
+        createdCounter = Counter.builder("api.intake.items").tag("result", CREATED).register(registry);
+        existingCounter = Counter.builder("api.intake.items").tag("result", EXISTING).register(registry);
+        failedCounter = Counter.builder("api.intake.items").tag("result", "failed").register(registry);
+    }
+
+    /**
+     * Read, validate and store the batch. Returns one item per element of the
+     * body, in order. Throws IOException if the body is not valid JSON, in
+     * which case nothing is stored.
+     */
+    public List<Item> submit(InputStream body) throws IOException, SQLException {
+        List<Item> items = parse(body);
+
+        // Deduplicate within the batch, the first valid item of a key wins
+        Map<String, Item> byKey = new HashMap<>();
+        List<Item> firsts = new ArrayList<>();
+        List<Item> repeats = new ArrayList<>();
+        for (Item item : items) {
+            if (item.error != null) {
+                continue;
+            }
+            Item first = byKey.putIfAbsent(item.key, item);
+            if (first == null) {
+                firsts.add(item);
+            } else if (!first.sameRequest(item.originLat, item.originLon, item.destLat, item.destLon, item.weight)) {
+                item.error = "idempotency_key already used for a different request in this batch";
+            } else {
+                repeats.add(item);
+            }
+        }
+
+        if (!firsts.isEmpty()) {
+            database.write(session -> {
+                resolveKnownKeys(session, firsts, byKey);
+                insertNew(session, firsts);
+                return null;
+            });
+        }
+
+        for (Item item : repeats) {
+            Item first = byKey.get(item.key);
+            if (first.error != null) {
+                item.error = first.error;
+            } else {
+                item.requestId = first.requestId;
+                item.result = EXISTING;
+            }
+        }
+
+        for (Item item : items) {
+            if (item.error != null) {
+                failedCounter.increment();
+            } else if (item.isCreated()) {
+                createdCounter.increment();
+            } else {
+                existingCounter.increment();
+            }
+        }
+        return items;
+    }
+
+    private List<Item> parse(InputStream body) throws IOException {
+        List<Item> items = new ArrayList<>();
+        // A root level array is unwrapped, otherwise objects are read one after another
+        try (MappingIterator<JsonNode> values = reader.readValues(body)) {
+            while (values.hasNextValue()) {
+                if (items.size() == MAX_ITEMS) {
+                    throw new TooManyItemsException();
+                }
+                items.add(validate(items.size(), values.nextValue()));
+            }
+        }
+        return items;
+    }
+
+    private static Item validate(int index, JsonNode json) {
+        Item item = new Item(index);
+        if (!json.isObject()) {
+            item.error = "Expected a JSON object";
+            return item;
+        }
+        JsonNode key = json.get("idempotency_key");
+        if (key == null || !key.isTextual() || key.asText().isEmpty()) {
+            item.error = "idempotency_key is required";
+            return item;
+        }
+        item.key = key.asText();
+        if (item.key.length() > MAX_KEY_LENGTH) {
+            item.error = "idempotency_key is longer than " + MAX_KEY_LENGTH + " characters";
+            return item;
+        }
+        readRequest(item, json);
+        return item;
+    }
+
+    /**
+     * Parse and check a single request as sent to POST /request. The item
+     * carries an error instead if a field is missing or malformed.
+     */
+    static Item parseRequest(JsonNode json) {
+        Item item = new Item(0);
+        if (!json.isObject()) {
+            item.error = "Expected a JSON object";
+            return item;
+        }
+        readRequest(item, json);
+        return item;
+    }
+
+    private static void readRequest(Item item, JsonNode json) {
+        JsonNode origin = json.get("origin_latlong");
+        JsonNode dest = json.get("dest_latlong");
+        JsonNode weight = json.get("weight");
+        if (origin == null || !origin.isTextual() || dest == null || !dest.isTextual()) {
+            item.error = "origin_latlong and dest_latlong are required";
+            return;
+        }
+        if (weight == null || !weight.isIntegralNumber() || !weight.canConvertToInt() || weight.asInt() <= 0) {
+            item.error = "weight must be a positive integer";
+            return;
+        }
+        try {
+            item.originLat = LatLong.parseLat(origin.asText());
+            item.originLon = LatLong.parseLon(origin.asText());
+            item.destLat = LatLong.parseLat(dest.asText());
+            item.destLon = LatLong.parseLon(dest.asText());
+        } catch (RuntimeException e) {
+            item.error = "Coordinates must be \"lat,long\"";
+            return;
+        }
+        if (!inRange(item.originLat, item.originLon) || !inRange(item.destLat, item.destLon)) {
+            item.error = "Coordinates out of range";
+            return;
+        }
+        item.weight = weight.asInt();
+    }
+
+    private static boolean inRange(double lat, double lon) {
+        return lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180;
+    }
+
+    /**
+     * Point the items whose key is already stored at the existing request.
+     */
+    private static void resolveKnownKeys(Database.Session session, List<Item> items, Map<String, Item> byKey)
+            throws SQLException {
+        for (int from = 0; from < items.size(); from += LOOKUP_CHUNK) {
+            int count = Math.min(LOOKUP_CHUNK, items.size() - from);
+            PreparedStatement lookupStmt = session.prepare(LOOKUP_SQL);
+            for (int i = 0; i < count; i++) {
+                lookupStmt.setString(i + 1, items.get(from + i).key);
+            }
+            for (int i = count; i < LOOKUP_CHUNK; i++) {
+                lookupStmt.setNull(i + 1, Types.VARCHAR);
+            }
+            try (ResultSet rs = lookupStmt.executeQuery()) {
+                while (rs.next()) {
+                    Item item = byKey.get(rs.getString(1));
+                    if (item.sameRequest(rs.getDouble(3), rs.getDouble(4), rs.getDouble(5), rs.getDouble(6),
+                            rs.getInt(7))) {
+                        item.requestId = rs.getString(2);
+                        item.result = EXISTING;
+                    } else {
+                        item.error = "idempotency_key already used for a different request";
+                    }
+                }
+            }
+        }
+    }
+
+    private static void insertNew(Database.Session session, List<Item> items) throws SQLException {
+        PreparedStatement insertStmt = session.prepare(
+                "INSERT INTO requests (request_id, origin_lat, origin_lon, dest_lat, dest_lon, weight, curr_status, idempotency_key) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        int pending = 0;
+        for (Item item : items) {
+            if (item.result != null || item.error != null) {
+                continue;
+            }
+            item.requestId = UUID.randomUUID().toString();
+            item.result = CREATED;
+            insertStmt.setString(1, item.requestId);
+            insertStmt.setDouble(2, item.originLat);
+            insertStmt.setDouble(3, item.originLon);
+            insertStmt.setDouble(4, item.destLat);
+            insertStmt.setDouble(5, item.destLon);
+            insertStmt.setInt(6, item.weight);
+            insertStmt.setInt(7, RequestStatus.PENDING.code);
+            insertStmt.setString(8, item.key);
+            insertStmt.addBatch();
+            if (++pending == INSERT_CHUNK) {
+                insertStmt.executeBatch();
+                pending = 0;
+            }
+        }
+        if (pending > 0) {
+            insertStmt.executeBatch();
+        }
+    }
+}
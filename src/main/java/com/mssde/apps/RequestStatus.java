@@ -0,0 +1,43 @@
+package com.mssde.apps;
+
+/**
+ * Lifecycle of a delivery request. The code is what gets stored in the
+ * requests table, the label is what the API exposes.
+ */
+public enum RequestStatus {
+    PENDING(0, "pending"),
+    ASSIGNED(1, "assigned"),
+    ON_ROUTE(2, "on route"),
+    CANCELLING(3, "cancelling"),
+    CANCELLED(4, "cancelled"),
+    DONE(5, "done");
+
+    private static final RequestStatus[] BY_CODE = new RequestStatus[values().length];
+
+    static {
+        for (RequestStatus status : values()) {
+            BY_CODE[status.code] = status;
+        }
+    }
+
+    public final int code;
+    public final String label;
+
+    RequestStatus(int code, String label) {
+        this.code = code;
+        this.label = label;
+    }
+
+    public static RequestStatus fromCode(int code) {
+        return BY_CODE[code];
+    }
+
+    public static RequestStatus fromLabel(String label) {
+        for (RequestStatus status : values()) {
+            if (status.label.equalsIgnoreCase(label)) {
+                return status;
+            }
+        }
+        throw new IllegalArgumentException("Unknown request status: " + label);
+    }
+}
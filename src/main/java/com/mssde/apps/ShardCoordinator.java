@@ -0,0 +1,278 @@
+package com.mssde.apps;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Splits the fleet between several Director instances sharing one database.
+ *
+ * Drones and requests are hashed into a fixed number of partitions and each
+ * partition is given to one live director by rendezvous hashing, so a director
+ * joining or leaving only moves the partitions it gains or loses. Directors
+ * announce themselves with a heartbeat in the directors table, and hold each
+ * partition through a lease in shard_leases that must be renewed before it
+ * expires. A partition is only taken over once its lease was released or has
+ * expired, which is what keeps two directors from assigning the same drone.
+ */
+public class ShardCoordinator {
+
+    public static final int PARTITIONS = 64;
+    public static final long LEASE_TTL_MS = 10000;
+    public static final long RENEW_INTERVAL_MS = 2000;
+
+    /**
+     * Told about ownership changes from within rebalance().
+     */
+    public interface Listener {
+        /**
+         * Called before the leases are given up, so state can be flushed for
+         * the next owner.
+         */
+        void partitionsLost(BitSet partitions);
+
+        void partitionsGained(BitSet partitions);
+    }
+
+    private final Database database;
+    private final String directorId;
+    private final BitSet owned = new BitSet(PARTITIONS);
+    // Partitions whose lease renew() found taken, not yet reported as lost
+    private final BitSet revoked = new BitSet(PARTITIONS);
+    // Leases are only trusted locally until shortly before they expire
+    private long validUntil;
+
+    public ShardCoordinator(Database database, String directorId) {
+        this.database = database;
+        this.directorId = directorId;
+    }
+
+    public static int partitionOf(String key) {
+        return (int) Long.remainderUnsigned(mix(key.hashCode()), PARTITIONS);
+    }
+
+    // SplitMix64 finalizer, spreads String.hashCode which is the same in every JVM
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Rendezvous hashing: the member with the highest score for the partition
+     * owns it.
+     */
+    static String ownerOf(int partition, List<String> members) {
+        String best = null;
+        long bestScore = 0;
+        for (String member : members) {
+            long score = mix(((long) member.hashCode() << 32) ^ partition);
+            if (best == null || Long.compareUnsigned(score, bestScore) > 0
+                    || (score == bestScore && member.compareTo(best) < 0)) {
+                best = member;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    public synchronized boolean owns(int partition) {
+        return owned.get(partition) && System.currentTimeMillis() < validUntil;
+    }
+
+    public boolean ownsKey(String key) {
+        return owns(partitionOf(key));
+    }
+
+    public synchronized int ownedCount() {
+        return owned.cardinality();
+    }
+
+    public String getDirectorId() {
+        return directorId;
+    }
+
+    /**
+     * Whether the leases are still trusted. Callers check it right before
+     * writing on behalf of their partitions.
+     */
+    public synchronized boolean leasesValid() {
+        return System.currentTimeMillis() < validUntil;
+    }
+
+    private void heartbeat(Database.Session session, long now) throws SQLException {
+        PreparedStatement heartbeatStmt = session.prepare(
+                "INSERT INTO directors (director_id, heartbeat_at) VALUES (?, ?) "
+                        + "ON CONFLICT(director_id) DO UPDATE SET heartbeat_at = excluded.heartbeat_at");
+        heartbeatStmt.setString(1, directorId);
+        heartbeatStmt.setLong(2, now);
+        heartbeatStmt.executeUpdate();
+    }
+
+    /**
+     * Send a heartbeat and extend the leases we hold. Meant to run on a
+     * thread of its own, so a long assignment pass cannot let them lapse.
+     * Ownership changes are left to rebalance(). Returns true if a lease was
+     * found taken by someone else, rebalance() then reports it as lost.
+     */
+    public boolean renew() throws SQLException {
+        BitSet held;
+        synchronized (this) {
+            held = (BitSet) owned.clone();
+        }
+        long now = System.currentTimeMillis();
+        int[] renewed = database.write(session -> {
+            heartbeat(session, now);
+            PreparedStatement renewStmt = session.prepare(
+                    "UPDATE shard_leases SET expires_at = ? WHERE shard = ? AND owner = ?");
+            for (int p = held.nextSetBit(0); p >= 0; p = held.nextSetBit(p + 1)) {
+                renewStmt.setLong(1, now + LEASE_TTL_MS);
+                renewStmt.setInt(2, p);
+                renewStmt.setString(3, directorId);
+                renewStmt.addBatch();
+            }
+            return held.isEmpty() ? new int[0] : renewStmt.executeBatch();
+        });
+        synchronized (this) {
+            int i = 0;
+            for (int p = held.nextSetBit(0); p >= 0; p = held.nextSetBit(p + 1), i++) {
+                // Partitions handed over meanwhile are no longer ours anyway
+                if (renewed[i] == 0 && owned.get(p)) {
+                    owned.clear(p);
+                    revoked.set(p);
+                }
+            }
+            validUntil = Math.max(validUntil, now + LEASE_TTL_MS - RENEW_INTERVAL_MS);
+            return !revoked.isEmpty();
+        }
+    }
+
+    /**
+     * Send a heartbeat, hand over the partitions that now belong to someone
+     * else and take or renew the leases of the ones that belong to us. The
+     * listener is called without holding the lock, so renew() keeps running
+     * while it loads or evicts drones.
+     */
+    public void rebalance(Listener listener) throws SQLException {
+        long now = System.currentTimeMillis();
+        List<String> members = database.write(session -> {
+            heartbeat(session, now);
+
+            PreparedStatement expireStmt = session.prepare("DELETE FROM directors WHERE heartbeat_at < ?");
+            expireStmt.setLong(1, now - LEASE_TTL_MS);
+            expireStmt.executeUpdate();
+
+            List<String> alive = new ArrayList<>();
+            try (ResultSet rs = session.prepare("SELECT director_id FROM directors").executeQuery()) {
+                while (rs.next()) {
+                    alive.add(rs.getString("director_id"));
+                }
+            }
+            return alive;
+        });
+
+        BitSet desired = new BitSet(PARTITIONS);
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (directorId.equals(ownerOf(p, members))) {
+                desired.set(p);
+            }
+        }
+
+        // Leases renew() found taken by someone else
+        BitSet taken;
+        BitSet handOff;
+        synchronized (this) {
+            taken = (BitSet) revoked.clone();
+            revoked.clear();
+            handOff = (BitSet) owned.clone();
+        }
+        if (!taken.isEmpty()) {
+            listener.partitionsLost(taken);
+        }
+
+        // A director joined: let go of its partitions first, it takes them on its next round
+        handOff.andNot(desired);
+        if (!handOff.isEmpty()) {
+            listener.partitionsLost(handOff);
+            release(handOff);
+        }
+
+        // Renew what we hold and claim what is free or expired
+        int[] acquired = database.write(session -> {
+            PreparedStatement leaseStmt = session.prepare(
+                    "INSERT INTO shard_leases (shard, owner, expires_at) VALUES (?, ?, ?) "
+                            + "ON CONFLICT(shard) DO UPDATE SET owner = excluded.owner, expires_at = excluded.expires_at "
+                            + "WHERE shard_leases.owner = excluded.owner OR shard_leases.expires_at < ?");
+            for (int p = desired.nextSetBit(0); p >= 0; p = desired.nextSetBit(p + 1)) {
+                leaseStmt.setInt(1, p);
+                leaseStmt.setString(2, directorId);
+                leaseStmt.setLong(3, now + LEASE_TTL_MS);
+                leaseStmt.setLong(4, now);
+                leaseStmt.addBatch();
+            }
+            return desired.isEmpty() ? new int[0] : leaseStmt.executeBatch();
+        });
+
+        BitSet gained = new BitSet(PARTITIONS);
+        BitSet lost = new BitSet(PARTITIONS);
+        synchronized (this) {
+            validUntil = Math.max(validUntil, now + LEASE_TTL_MS - RENEW_INTERVAL_MS);
+            int i = 0;
+            for (int p = desired.nextSetBit(0); p >= 0; p = desired.nextSetBit(p + 1), i++) {
+                if (acquired[i] > 0 && !owned.get(p)) {
+                    gained.set(p);
+                } else if (acquired[i] == 0 && owned.get(p)) {
+                    // Our lease expired and someone else took the partition meanwhile
+                    lost.set(p);
+                }
+            }
+            owned.andNot(lost);
+            owned.or(gained);
+        }
+        if (!lost.isEmpty()) {
+            listener.partitionsLost(lost);
+        }
+        if (!gained.isEmpty()) {
+            listener.partitionsGained(gained);
+        }
+    }
+
+    private void release(BitSet partitions) throws SQLException {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        database.write(session -> {
+            PreparedStatement releaseStmt = session.prepare(
+                    "DELETE FROM shard_leases WHERE shard = ? AND owner = ?");
+            for (int p = partitions.nextSetBit(0); p >= 0; p = partitions.nextSetBit(p + 1)) {
+                releaseStmt.setInt(1, p);
+                releaseStmt.setString(2, directorId);
+                releaseStmt.addBatch();
+            }
+            return releaseStmt.executeBatch();
+        });
+        synchronized (this) {
+            owned.andNot(partitions);
+        }
+    }
+
+    /**
+     * Give up every lease and leave the group so the others take over right
+     * away instead of waiting for the leases to expire.
+     */
+    public synchronized void leave() {
+        try {
+            release((BitSet) owned.clone());
+            database.write(session -> {
+                PreparedStatement deleteStmt = session.prepare("DELETE FROM directors WHERE director_id = ?");
+                deleteStmt.setString(1, directorId);
+                return deleteStmt.executeUpdate();
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.mssde.apps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.Math.*;
+
+/**
+ * Uniform lat/long grid over idle drones. Drones are moved between cells
+ * incrementally as their position or status changes, and nearest-neighbour
+ * queries search rings of cells around the target so the cost depends on the
+ * local density instead of the fleet size. Longitude cells wrap around at
+ * the antimeridian, so drones on either side of it are neighbours.
+ */
+public class SpatialIndex {
+
+    private static final double METERS_PER_DEGREE = 6371000 * PI / 180;
+
+    private static class Entry {
+        final FleetStore.DroneState drone;
+        double lat;
+        double lon;
+        long cell;
+
+        Entry(FleetStore.DroneState drone) {
+            this.drone = drone;
+        }
+    }
+
+    private final double cellDegrees;
+    // Cells around a parallel
+    private final int lonCells;
+    private final Map<Long, List<Entry>> cells = new HashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public SpatialIndex(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+        this.lonCells = (int) ceil(360 / cellDegrees);
+    }
+
+    public SpatialIndex() {
+        this(0.01); // ~1.1 km cells
+    }
+
+    private long cellOf(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xffffffffL);
+    }
+
+    private int latCell(double lat) {
+        return (int) floor(lat / cellDegrees);
+    }
+
+    private int lonCell(double lon) {
+        return floorMod((int) floor(lon / cellDegrees), lonCells);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Insert or move a drone to the cell covering the given position.
+     */
+    public synchronized void put(FleetStore.DroneState drone, double lat, double lon) {
+        long cell = cellOf(latCell(lat), lonCell(lon));
+        Entry entry = entries.get(drone.getDroneId());
+        if (entry == null) {
+            entry = new Entry(drone);
+            entries.put(drone.getDroneId(), entry);
+        } else if (entry.cell != cell) {
+            removeFromCell(entry);
+        } else {
+            entry.lat = lat;
+            entry.lon = lon;
+            return;
+        }
+        entry.lat = lat;
+        entry.lon = lon;
+        entry.cell = cell;
+        cells.computeIfAbsent(cell, k -> new ArrayList<>()).add(entry);
+    }
+
+    public synchronized void remove(String droneId) {
+        Entry entry = entries.remove(droneId);
+        if (entry != null) {
+            removeFromCell(entry);
+        }
+    }
+
+    private void removeFromCell(Entry entry) {
+        List<Entry> bucket = cells.get(entry.cell);
+        if (bucket == null) {
+            return;
+        }
+        bucket.remove(entry);
+        if (bucket.isEmpty()) {
+            cells.remove(entry.cell);
+        }
+    }
+
+    /**
+     * Equirectangular approximation of the squared distance in meters, only
+     * used to rank candidates before the exact haversine.
+     */
+    private static double approxDistanceSq(double lat1, double lon1, double lat2, double lon2) {
+        double dLon = lon2 - lon1;
+        if (dLon > 180) {
+            dLon -= 360;
+        } else if (dLon < -180) {
+            dLon += 360;
+        }
+        double x = toRadians(dLon) * cos(toRadians((lat1 + lat2) / 2));
+        double y = toRadians(lat2 - lat1);
+        return (x * x + y * y) * 6371000 * 6371000;
+    }
+
+    /**
+     * Insert a candidate into the sorted top-k arrays. Returns the new count.
+     */
+    private static int offer(Entry[] best, double[] bestDist, int found, Entry entry, double d) {
+        int k = best.length;
+        if (found < k) {
+            found++;
+        } else if (d >= bestDist[k - 1]) {
+            return found;
+        }
+        int i = found - 1;
+        while (i > 0 && bestDist[i - 1] > d) {
+            best[i] = best[i - 1];
+            bestDist[i] = bestDist[i - 1];
+            i--;
+        }
+        best[i] = entry;
+        bestDist[i] = d;
+        return found;
+    }
+
+    /**
+     * Return up to k idle drones ordered by haversine distance to the point.
+     */
+    public synchronized List<FleetStore.DroneState> nearest(double lat, double lon, int k) {
+        List<FleetStore.DroneState> result = new ArrayList<>(k);
+        if (entries.isEmpty() || k <= 0) {
+            return result;
+        }
+
+        int centerLat = latCell(lat);
+        int centerLon = lonCell(lon);
+
+        // Best k candidates so far, sorted by approximate distance
+        Entry[] best = new Entry[k];
+        double[] bestDist = new double[k];
+        int found = 0;
+        int seen = 0;
+
+        for (int ring = 0; seen < entries.size(); ring++) {
+            if ((long) (2 * ring + 1) * (2 * ring + 1) > 4L * cells.size() || 2 * ring + 1 > lonCells) {
+                // The ring covers more cells than are occupied, scanning them all is
+                // cheaper. Also stops before a ring wraps onto itself around the globe
+                found = 0;
+                for (List<Entry> bucket : cells.values()) {
+                    for (Entry entry : bucket) {
+                        found = offer(best, bestDist, found, entry, approxDistanceSq(lat, lon, entry.lat, entry.lon));
+                    }
+                }
+                break;
+            }
+            // Everything in this ring is at least (ring - 1) cells away. Use the
+            // narrowest cell width the ring can reach to keep the bound conservative
+            double cellMeters = cellDegrees * METERS_PER_DEGREE
+                    * max(0.01, cos(toRadians(min(89.0, abs(lat) + (ring + 1) * cellDegrees))));
+            double ringMin = max(0, ring - 1) * cellMeters;
+            if (found == k && ringMin * ringMin > bestDist[k - 1]) {
+                break;
+            }
+            for (int dLat = -ring; dLat <= ring; dLat++) {
+                int step = (dLat == -ring || dLat == ring) ? 1 : 2 * ring;
+                for (int dLon = -ring; dLon <= ring; dLon += max(1, step)) {
+                    int cellLon = floorMod(centerLon + dLon, lonCells);
+                    List<Entry> bucket = cells.get(cellOf(centerLat + dLat, cellLon));
+                    if (bucket == null) {
+                        continue;
+                    }
+                    for (Entry entry : bucket) {
+                        seen++;
+                        found = offer(best, bestDist, found, entry, approxDistanceSq(lat, lon, entry.lat, entry.lon));
+                    }
+                }
+            }
+        }
+
+        // Exact ordering of the shortlisted candidates
+        double[] exact = new double[found];
+        for (int i = 0; i < found; i++) {
+            exact[i] = haversine(lat, lon, best[i].lat, best[i].lon);
+        }
+        for (int i = 1; i < found; i++) {
+            Entry e = best[i];
+            double d = exact[i];
+            int j = i;
+            while (j > 0 && exact[j - 1] > d) {
+                best[j] = best[j - 1];
+                exact[j] = exact[j - 1];
+                j--;
+            }
+            best[j] = e;
+            exact[j] = d;
+        }
+        for (int i = 0; i < found; i++) {
+            result.add(best[i].drone);
+        }
+        return result;
+    }
+
+    /**
+     * Calculate distance between two points in latitude and longitude.
+     * Haversine formula
+     */
+    public static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        final int R = 6371; // Radius of the earth in km
+        double dLat = toRadians(lat2 - lat1);
+        double dLon = toRadians(lon2 - lon1);
+        double a = sin(dLat / 2) * sin(dLat / 2) +
+                cos(toRadians(lat1)) * cos(toRadians(lat2)) *
+                        sin(dLon / 2) * sin(dLon / 2);
+        double c = 2 * atan2(sqrt(a), sqrt(1 - a));
+        double distance = R * c; // Convert to meters
+        return distance * 1000;
+    }
+}
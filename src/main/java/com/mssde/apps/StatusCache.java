@@ -0,0 +1,148 @@
+package com.mssde.apps;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bounded LRU cache of /status responses keyed by request id. Entries expire
+ * after a TTL and are dropped as soon as the request changes state. Long-poll
+ * callers can register to be woken up on that change, they run on a small
+ * pool of their own so invalidations never wait on a database read.
+ */
+public class StatusCache {
+
+    public static class Entry {
+        public final Map<String, Object> body;
+        public final String etag;
+        final long expiresAt;
+
+        Entry(Map<String, Object> body, long expiresAt) {
+            this.body = body;
+            this.etag = "\"" + digest(body) + "\"";
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlMs;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Map<String, List<Runnable>> waiters = new HashMap<>();
+    // Clock ticking on every invalidation, and the tick of the last
+    // invalidation of each recently changed request. A load that started
+    // before the last invalidation of its own request is not cached
+    private long clock;
+    private final LinkedHashMap<String, Long> invalidated;
+    // Newest tick forgotten from invalidated, assumed for untracked requests
+    private long forgotten;
+    private final ExecutorService wakeups = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "status-wakeup");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public StatusCache(int capacity, long ttlMs) {
+        this.capacity = capacity;
+        this.ttlMs = ttlMs;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > StatusCache.this.capacity;
+            }
+        };
+        this.invalidated = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() <= StatusCache.this.capacity) {
+                    return false;
+                }
+                forgotten = Math.max(forgotten, eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * SHA-256 of the body, truncated to 128 bits, as a strong ETag.
+     */
+    static String digest(Map<String, Object> body) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256")
+                    .digest(body.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized Entry get(String requestId) {
+        Entry entry = entries.get(requestId);
+        if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(requestId);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Stamp to take before loading from the database and hand to put().
+     */
+    public synchronized long stamp() {
+        return clock;
+    }
+
+    /**
+     * Cache the loaded body unless this request was invalidated while it was
+     * being loaded. Returns the entry either way so the caller can use it.
+     */
+    public synchronized Entry put(String requestId, Map<String, Object> body, long loadStamp) {
+        Entry entry = new Entry(body, System.currentTimeMillis() + ttlMs);
+        Long changed = invalidated.get(requestId);
+        if ((changed != null ? changed : forgotten) <= loadStamp) {
+            entries.put(requestId, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Drop the cached response for a request and wake up its long-poll waiters.
+     */
+    public void invalidate(String requestId) {
+        List<Runnable> woken;
+        synchronized (this) {
+            invalidated.remove(requestId);
+            invalidated.put(requestId, ++clock);
+            entries.remove(requestId);
+            woken = waiters.remove(requestId);
+        }
+        if (woken != null) {
+            // Waiters read the new status from the database, keep that off
+            // the MQTT callback thread
+            for (Runnable waiter : woken) {
+                wakeups.execute(waiter);
+            }
+        }
+    }
+
+    public synchronized void addWaiter(String requestId, Runnable waiter) {
+        waiters.computeIfAbsent(requestId, k -> new ArrayList<>()).add(waiter);
+    }
+
+    public synchronized void removeWaiter(String requestId, Runnable waiter) {
+        List<Runnable> list = waiters.get(requestId);
+        if (list != null) {
+            list.remove(waiter);
+            if (list.isEmpty()) {
+                waiters.remove(requestId);
+            }
+        }
+    }
+}
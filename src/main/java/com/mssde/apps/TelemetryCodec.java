@@ -0,0 +1,245 @@
+package com.mssde.apps;
+
+import org.json.JSONObject;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+/**
+ * Fixed-layout binary encoding for the MQTT status and command messages.
+ *
+ * Every frame starts with a version byte and a kind byte, followed by
+ * big-endian fields:
+ *
+ * <pre>
+ * status  (36 bytes): version, kind=1, status code, battery, lat (double), lon (double), request id (16 bytes)
+ * command (40 bytes): version, kind=2, 2 bytes padding, weight (int), lat (double), lon (double), request id (16 bytes)
+ * cancel  (20 bytes): version, kind=3, 2 bytes padding, request id (16 bytes)
+ * </pre>
+ *
+ * Commands and cancels share the command/&lt;drone_id&gt; topic.
+ *
+ * A request id of all zeros means "no request". Encoding and decoding work
+ * on caller-provided arrays and holders so nothing is allocated per message.
+ * Frames can never start with '{', which is how JSON payloads from older
+ * drones are told apart.
+ */
+public class TelemetryCodec {
+
+    public static final byte VERSION = 1;
+    public static final byte KIND_STATUS = 1;
+    public static final byte KIND_COMMAND = 2;
+    public static final byte KIND_CANCEL = 3;
+    public static final int STATUS_SIZE = 36;
+    public static final int COMMAND_SIZE = 40;
+    public static final int CANCEL_SIZE = 20;
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private TelemetryCodec() {
+    }
+
+    /**
+     * Status report sent by a drone on status/&lt;drone_id&gt;.
+     */
+    public static class Status {
+        public DroneStatus status = DroneStatus.IDLE;
+        public int battery;
+        public double lat;
+        public double lon;
+        public long requestMsb;
+        public long requestLsb;
+
+        public boolean hasRequest() {
+            return requestMsb != 0 || requestLsb != 0;
+        }
+
+        public String requestId() {
+            return hasRequest() ? new UUID(requestMsb, requestLsb).toString() : null;
+        }
+
+        public void setRequestId(String requestId) {
+            if (requestId == null) {
+                requestMsb = 0;
+                requestLsb = 0;
+            } else {
+                UUID uuid = UUID.fromString(requestId);
+                requestMsb = uuid.getMostSignificantBits();
+                requestLsb = uuid.getLeastSignificantBits();
+            }
+        }
+    }
+
+    /**
+     * Job sent by the director on command/&lt;drone_id&gt;.
+     */
+    public static class Command {
+        public int weight;
+        public double lat;
+        public double lon;
+        public long requestMsb;
+        public long requestLsb;
+
+        public String requestId() {
+            return new UUID(requestMsb, requestLsb).toString();
+        }
+
+        public void setRequestId(String requestId) {
+            UUID uuid = UUID.fromString(requestId);
+            requestMsb = uuid.getMostSignificantBits();
+            requestLsb = uuid.getLeastSignificantBits();
+        }
+    }
+
+    /**
+     * True if the payload is a binary frame rather than a JSON document.
+     */
+    public static boolean isBinary(byte[] payload) {
+        return payload.length > 1 && payload[0] == VERSION;
+    }
+
+    public static byte kind(byte[] payload) {
+        return payload[1];
+    }
+
+    public static void encodeStatus(Status status, byte[] out) {
+        out[0] = VERSION;
+        out[1] = KIND_STATUS;
+        out[2] = (byte) status.status.code;
+        out[3] = (byte) Math.max(0, Math.min(100, status.battery));
+        LONG.set(out, 4, Double.doubleToRawLongBits(status.lat));
+        LONG.set(out, 12, Double.doubleToRawLongBits(status.lon));
+        LONG.set(out, 20, status.requestMsb);
+        LONG.set(out, 28, status.requestLsb);
+    }
+
+    public static void decodeStatus(byte[] in, Status out) {
+        checkFrame(in, KIND_STATUS, STATUS_SIZE);
+        out.status = DroneStatus.fromCode(in[2]);
+        out.battery = in[3];
+        out.lat = Double.longBitsToDouble((long) LONG.get(in, 4));
+        out.lon = Double.longBitsToDouble((long) LONG.get(in, 12));
+        out.requestMsb = (long) LONG.get(in, 20);
+        out.requestLsb = (long) LONG.get(in, 28);
+    }
+
+    public static void encodeCommand(Command command, byte[] out) {
+        out[0] = VERSION;
+        out[1] = KIND_COMMAND;
+        out[2] = 0;
+        out[3] = 0;
+        INT.set(out, 4, command.weight);
+        LONG.set(out, 8, Double.doubleToRawLongBits(command.lat));
+        LONG.set(out, 16, Double.doubleToRawLongBits(command.lon));
+        LONG.set(out, 24, command.requestMsb);
+        LONG.set(out, 32, command.requestLsb);
+    }
+
+    public static void decodeCommand(byte[] in, Command out) {
+        checkFrame(in, KIND_COMMAND, COMMAND_SIZE);
+        out.weight = (int) INT.get(in, 4);
+        out.lat = Double.longBitsToDouble((long) LONG.get(in, 8));
+        out.lon = Double.longBitsToDouble((long) LONG.get(in, 16));
+        out.requestMsb = (long) LONG.get(in, 24);
+        out.requestLsb = (long) LONG.get(in, 32);
+    }
+
+    public static void encodeCancel(String requestId, byte[] out) {
+        UUID uuid = UUID.fromString(requestId);
+        out[0] = VERSION;
+        out[1] = KIND_CANCEL;
+        out[2] = 0;
+        out[3] = 0;
+        LONG.set(out, 4, uuid.getMostSignificantBits());
+        LONG.set(out, 12, uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Decode a cancel frame. Only the request id of the holder is set.
+     */
+    public static void decodeCancel(byte[] in, Command out) {
+        checkFrame(in, KIND_CANCEL, CANCEL_SIZE);
+        out.requestMsb = (long) LONG.get(in, 4);
+        out.requestLsb = (long) LONG.get(in, 12);
+    }
+
+    /**
+     * Decode anything received on command/&lt;drone_id&gt;, binary or JSON.
+     * Returns KIND_COMMAND or KIND_CANCEL.
+     */
+    public static byte readCommand(byte[] payload, Command out) {
+        if (!isBinary(payload)) {
+            return commandFromJson(payload, out);
+        }
+        if (kind(payload) == KIND_CANCEL) {
+            decodeCancel(payload, out);
+            return KIND_CANCEL;
+        }
+        decodeCommand(payload, out);
+        return KIND_COMMAND;
+    }
+
+    private static void checkFrame(byte[] in, byte kind, int size) {
+        if (in.length < size || in[0] != VERSION || in[1] != kind) {
+            throw new IllegalArgumentException("Malformed frame of kind " + kind + " and length " + in.length);
+        }
+    }
+
+    // JSON fallback, same fields as the binary frames
+
+    public static byte[] statusToJson(String droneId, Status status) {
+        JSONObject json = new JSONObject();
+        json.put("drone_id", droneId);
+        json.put("status", status.status.label);
+        json.put("latlong", LatLong.format(status.lat, status.lon));
+        json.put("curr_battery", status.battery);
+        if (status.hasRequest()) {
+            json.put("request_id", status.requestId());
+        }
+        return json.toString().getBytes();
+    }
+
+    public static void statusFromJson(byte[] payload, Status out) {
+        JSONObject json = new JSONObject(new String(payload));
+        String latlong = json.optString("curr_latlong", json.optString("latlong", "0,0"));
+        out.status = DroneStatus.fromLabel(json.getString("status"));
+        out.battery = json.optInt("curr_battery", 0);
+        out.lat = LatLong.parseLat(latlong);
+        out.lon = LatLong.parseLon(latlong);
+        out.setRequestId(json.optString("request_id", null));
+    }
+
+    public static byte[] commandToJson(Command command) {
+        JSONObject json = new JSONObject();
+        json.put("request_id", command.requestId());
+        json.put("dest_latlong", LatLong.format(command.lat, command.lon));
+        json.put("weight", command.weight);
+        return json.toString().getBytes();
+    }
+
+    public static byte[] cancelToJson(String requestId) {
+        JSONObject json = new JSONObject();
+        json.put("request_id", requestId);
+        json.put("cancel", true);
+        return json.toString().getBytes();
+    }
+
+    /**
+     * Returns KIND_CANCEL for a cancel, in which case only the request id is set.
+     */
+    public static byte commandFromJson(byte[] payload, Command out) {
+        JSONObject json = new JSONObject(new String(payload));
+        out.setRequestId(json.getString("request_id"));
+        if (json.optBoolean("cancel", false)) {
+            return KIND_CANCEL;
+        }
+        String latlong = json.getString("dest_latlong");
+        out.weight = json.optInt("weight", 0);
+        out.lat = LatLong.parseLat(latlong);
+        out.lon = LatLong.parseLon(latlong);
+        return KIND_COMMAND;
+    }
+}
@@ -0,0 +1,189 @@
+package com.mssde.apps;
+
+import org.json.JSONObject;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans drone telemetry out to Server-Sent Events subscribers, watching either
+ * a drone or a request.
+ *
+ * The MQTT thread only appends the update to each subscriber's bounded
+ * buffer, dropping the oldest entry when it is full, and a small writer pool
+ * does the network sends. A slow client therefore loses intermediate
+ * positions instead of holding up telemetry for everyone else.
+ */
+public class TrackingHub {
+
+    private static final int BUFFER_SIZE = 16;
+
+    private class Subscriber {
+        final SseEmitter emitter;
+        final ArrayDeque<String> buffer = new ArrayDeque<>(BUFFER_SIZE);
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        void offer(String update) {
+            synchronized (buffer) {
+                if (buffer.size() == BUFFER_SIZE) {
+                    buffer.pollFirst();
+                    dropped.incrementAndGet();
+                }
+                buffer.addLast(update);
+            }
+            schedule();
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                writers.execute(this::drain);
+            }
+        }
+
+        void drain() {
+            try {
+                while (true) {
+                    String update;
+                    synchronized (buffer) {
+                        update = buffer.pollFirst();
+                    }
+                    if (update == null) {
+                        break;
+                    }
+                    emitter.send(SseEmitter.event().name("position").data(update, MediaType.APPLICATION_JSON));
+                }
+            } catch (IOException | IllegalStateException e) {
+                // Client went away, onCompletion/onError unregisters it
+                emitter.completeWithError(e);
+                return;
+            } finally {
+                scheduled.set(false);
+            }
+            // An update may have arrived between the last poll and clearing the flag
+            boolean pending;
+            synchronized (buffer) {
+                pending = !buffer.isEmpty();
+            }
+            if (pending) {
+                schedule();
+            }
+        }
+    }
+
+    private final Map<String, Set<Subscriber>> byDrone = new ConcurrentHashMap<>();
+    private final Map<String, Set<Subscriber>> byRequest = new ConcurrentHashMap<>();
+    private final ExecutorService writers;
+    private final long timeoutMs;
+    private final AtomicLong dropped = new AtomicLong();
+
+    public TrackingHub(int writerThreads, long timeoutMs) {
+        this.writers = Executors.newFixedThreadPool(writerThreads, r -> {
+            Thread t = new Thread(r, "tracking-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timeoutMs = timeoutMs;
+    }
+
+    public SseEmitter watchDrone(String droneId) {
+        return watch(byDrone, droneId);
+    }
+
+    public SseEmitter watchRequest(String requestId) {
+        return watch(byRequest, requestId);
+    }
+
+    private SseEmitter watch(Map<String, Set<Subscriber>> index, String key) {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Subscriber subscriber = new Subscriber(emitter);
+        index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        Runnable unsubscribe = () -> index.computeIfPresent(key, (k, set) -> {
+            set.remove(subscriber);
+            return set.isEmpty() ? null : set;
+        });
+        emitter.onCompletion(unsubscribe);
+        emitter.onTimeout(unsubscribe);
+        emitter.onError(e -> unsubscribe.run());
+        try {
+            // Flush the response headers right away instead of on the first position
+            emitter.send(SseEmitter.event().comment("watching " + key));
+        } catch (IOException e) {
+            emitter.completeWithError(e);
+        }
+        return emitter;
+    }
+
+    public int subscriberCount() {
+        int count = 0;
+        for (Set<Subscriber> set : byDrone.values()) {
+            count += set.size();
+        }
+        for (Set<Subscriber> set : byRequest.values()) {
+            count += set.size();
+        }
+        return count;
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Handle a status message from status/&lt;drone_id&gt;. Runs on the MQTT thread.
+     */
+    public void onTelemetry(String topic, byte[] payload, TelemetryCodec.Status status) {
+        String droneId = topic.substring("status/".length());
+        Set<Subscriber> droneWatchers = byDrone.get(droneId);
+        if (droneWatchers == null && byRequest.isEmpty()) {
+            return;
+        }
+        try {
+            if (TelemetryCodec.isBinary(payload)) {
+                TelemetryCodec.decodeStatus(payload, status);
+            } else {
+                TelemetryCodec.statusFromJson(payload, status);
+            }
+        } catch (RuntimeException e) {
+            return;
+        }
+        String requestId = status.requestId();
+        Set<Subscriber> requestWatchers = requestId == null ? null : byRequest.get(requestId);
+        if (droneWatchers == null && requestWatchers == null) {
+            return;
+        }
+
+        // Serialize once, share the string between all subscribers
+        JSONObject json = new JSONObject();
+        json.put("drone_id", droneId);
+        json.put("request_id", requestId == null ? JSONObject.NULL : requestId);
+        json.put("status", status.status.label);
+        json.put("curr_latlong", LatLong.format(status.lat, status.lon));
+        json.put("curr_battery", status.battery);
+        json.put("timestamp", System.currentTimeMillis());
+        String update = json.toString();
+
+        if (droneWatchers != null) {
+            for (Subscriber subscriber : droneWatchers) {
+                subscriber.offer(update);
+            }
+        }
+        if (requestWatchers != null) {
+            for (Subscriber subscriber : requestWatchers) {
+                subscriber.offer(update);
+            }
+        }
+    }
+}